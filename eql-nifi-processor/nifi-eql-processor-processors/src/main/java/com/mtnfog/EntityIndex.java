@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.mtnfog.entity.Entity;
+
+/**
+ * An index of a batch of entities by the values of their text, type, context,
+ * document ID and language. The index is used to find the entities that can
+ * match a query's equality terms so the query only evaluates those entities.
+ */
+public class EntityIndex {
+
+	/**
+	 * Reads the value of an indexed field from an entity.
+	 */
+	private interface FieldReader {
+
+		String read(Entity entity);
+
+	}
+
+	// The indexed entity fields keyed by their names in EQL.
+	private static final Map<String, FieldReader> FIELDS = new LinkedHashMap<>();
+
+	static {
+
+		FIELDS.put("text", new FieldReader() {
+
+			@Override
+			public String read(final Entity entity) {
+				return entity.getText();
+			}
+
+		});
+
+		FIELDS.put("type", new FieldReader() {
+
+			@Override
+			public String read(final Entity entity) {
+				return entity.getType();
+			}
+
+		});
+
+		FIELDS.put("context", new FieldReader() {
+
+			@Override
+			public String read(final Entity entity) {
+				return entity.getContext();
+			}
+
+		});
+
+		FIELDS.put("documentid", new FieldReader() {
+
+			@Override
+			public String read(final Entity entity) {
+				return entity.getDocumentId();
+			}
+
+		});
+
+		FIELDS.put("language", new FieldReader() {
+
+			@Override
+			public String read(final Entity entity) {
+				return entity.getLanguageCode();
+			}
+
+		});
+
+	}
+
+	private final List<Entity> entities;
+
+	// The positions of the entities having each value, keyed by the EQL field name and the lower case value.
+	private final Map<String, Map<String, List<Integer>>> positions = new HashMap<>();
+
+	/**
+	 * Indexes entities.
+	 * @param entities The entities.
+	 */
+	public EntityIndex(final List<Entity> entities) {
+
+		this.entities = entities;
+
+		for (final Map.Entry<String, FieldReader> field : FIELDS.entrySet()) {
+
+			final Map<String, List<Integer>> valuePositions = new HashMap<>();
+			boolean present = false;
+
+			for (int i = 0; i < entities.size(); i++) {
+
+				final String value = getValue(field.getValue(), entities.get(i));
+
+				if (value != null) {
+					present = true;
+				}
+
+				List<Integer> entityPositions = valuePositions.get(value);
+
+				if (entityPositions == null) {
+					entityPositions = new ArrayList<>();
+					valuePositions.put(value, entityPositions);
+				}
+
+				entityPositions.add(i);
+
+			}
+
+			// A field no entity has a value for is not indexed so it never prunes anything.
+			if (present) {
+				positions.put(field.getKey(), valuePositions);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Gets whether a field can be used to find candidate entities.
+	 * @param field The EQL name of the field.
+	 * @return <code>true</code> if the field is indexed.
+	 */
+	public static boolean isIndexable(final String field) {
+		return FIELDS.containsKey(field.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Gets the entities having the value of the most selective indexed term, in their original order.
+	 * Every entity matching all of the terms is a candidate. Values are compared ignoring case so
+	 * the candidates are never fewer than the matches.
+	 * @param terms The values the entities must equal, keyed by the EQL field name.
+	 * @return The candidate entities.
+	 */
+	public List<Entity> getCandidates(final Map<String, String> terms) {
+
+		List<Integer> smallest = null;
+
+		for (final Map.Entry<String, String> term : terms.entrySet()) {
+
+			final Map<String, List<Integer>> valuePositions = positions.get(term.getKey().toLowerCase(Locale.ENGLISH));
+
+			if (valuePositions != null) {
+
+				List<Integer> termPositions = valuePositions.get(term.getValue().toLowerCase(Locale.ENGLISH));
+
+				if (termPositions == null) {
+					termPositions = Collections.emptyList();
+				}
+
+				if (smallest == null || termPositions.size() < smallest.size()) {
+					smallest = termPositions;
+				}
+
+			}
+
+		}
+
+		if (smallest == null) {
+			return entities;
+		}
+
+		final List<Entity> candidates = new ArrayList<>(smallest.size());
+
+		for (final int position : smallest) {
+			candidates.add(entities.get(position));
+		}
+
+		return candidates;
+
+	}
+
+	public List<Entity> getEntities() {
+		return entities;
+	}
+
+	private static String getValue(final FieldReader field, final Entity entity) {
+
+		final String value = field.read(entity);
+
+		return value == null ? null : value.toLowerCase(Locale.ENGLISH);
+
+	}
+
+}
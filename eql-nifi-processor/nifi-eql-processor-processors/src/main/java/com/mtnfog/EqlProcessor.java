@@ -17,18 +17,28 @@ package com.mtnfog;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.reflect.Type;
+import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
@@ -37,7 +47,12 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -45,45 +60,160 @@ import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.mtnfog.entity.Entity;
-import com.mtnfog.entitydb.eql.filters.EqlFilters;
 
 @Tags({ "query, entities, extraction" })
 @CapabilityDescription("Provides entity filtering using the Entity Query Language.")
 @SeeAlso({})
 @ReadsAttributes({ @ReadsAttribute(attribute = "", description = "") })
-@WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
+@WritesAttributes({ @WritesAttribute(attribute = EqlProcessor.MATCH_COUNT_ATTRIBUTE, description = "The number of entities in the FlowFile's content."),
+	@WritesAttribute(attribute = EqlProcessor.ENTITY_COUNT_ATTRIBUTE, description = "The number of entities in the filtered input.") })
+@DynamicProperty(name = "Relationship name", value = "An EQL query", supportsExpressionLanguage = true,
+	description = "Writes the entities matching the query to a new FlowFile routed to the relationship of this name.")
+@DynamicRelationship(name = "Name from dynamic property", description = "FlowFiles containing the entities matching the property's EQL query.")
 public class EqlProcessor extends AbstractProcessor {
 
+	public static final String MATCH_COUNT_ATTRIBUTE = "eql.match.count";
+	public static final String ENTITY_COUNT_ATTRIBUTE = "eql.entity.count";
+	
+	public static final String EMPTY_RESULTS_TRANSFER = "transfer";
+	public static final String EMPTY_RESULTS_DROP = "drop";
+
 	public static final PropertyDescriptor EQL_QUERY = new PropertyDescriptor.Builder()
 			.name("EQL Query")
 			.defaultValue("select * from entities")
 			.description("The EQL query to filter the entities.")
 			.required(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.expressionLanguageSupported(true)
+			.build();
+	
+	public static final PropertyDescriptor QUERY_CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("Query Cache Size")
+			.defaultValue("100")
+			.description("The maximum number of distinct queries to keep validated when the EQL query uses Expression Language, "
+					+ "so each distinct query is only validated once.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Batch Size")
+			.defaultValue("1000")
+			.description("The number of entities read into memory and filtered at a time. Queries that limit or order their results are always evaluated against all of the entities at once.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor EMPTY_RESULTS = new PropertyDescriptor.Builder()
+			.name("Empty Results")
+			.defaultValue(EMPTY_RESULTS_TRANSFER)
+			.allowableValues(EMPTY_RESULTS_TRANSFER, EMPTY_RESULTS_DROP)
+			.description("Whether a result containing no entities is transferred as an empty array or dropped. This applies to the "
+					+ "matches, unmatched and dynamic relationships. A dropped result is never written: when dropping, the matches "
+					+ "are written to a new FlowFile only once the first one is found and the original FlowFile is removed.")
+			.required(true)
+			.build();
+	
+	public static final PropertyDescriptor ROUTE_UNMATCHED = new PropertyDescriptor.Builder()
+			.name("Route Unmatched")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.description("Whether the entities not matching the EQL query are written to the unmatched relationship. "
+					+ "The unmatched relationship only exists when this is true.")
+			.required(true)
+			.build();
+	
+	public static final PropertyDescriptor INDEX_ENTITIES = new PropertyDescriptor.Builder()
+			.name("Index Entities")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.description("Whether each batch of entities is indexed by text, type, context, document ID and language so queries "
+					+ "with equality terms on those fields only evaluate the entities that can match. Indexing pays off for large "
+					+ "batches, selective queries and when several queries are evaluated.")
+			.required(true)
+			.build();
+	
+	public static final PropertyDescriptor FILTER_THREADS = new PropertyDescriptor.Builder()
+			.name("Filter Threads")
+			.defaultValue("1")
+			.description("The number of threads used to filter a batch of entities. Entities are always written in their original order.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor PARALLEL_THRESHOLD = new PropertyDescriptor.Builder()
+			.name("Parallel Threshold")
+			.defaultValue("10000")
+			.description("The minimum number of entities in a batch for it to be filtered by more than one thread. A batch holds "
+					+ "at most Batch Size entities, so Batch Size must be at least this value for batches to be filtered in parallel. "
+					+ "Queries that limit or order their results are always filtered on a single thread.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
 			.build();
 	
 	public static final Relationship REL_MATCHES = new Relationship.Builder()
 			.name("matches").description("matches").build();
 
+	public static final Relationship REL_UNMATCHED = new Relationship.Builder()
+			.name("unmatched")
+			.description("The entities not matching the EQL query. Only present when Route Unmatched is true, and the complement "
+					+ "is only computed when this relationship is connected.")
+			.build();
+
 	public static final Relationship REL_FAILURE = new Relationship.Builder()
 			.name("failure").description("failure").build();
 
+	// Dynamic properties can't be named after the fixed relationships.
+	private static final Set<String> RESERVED_ROUTE_NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			REL_MATCHES.getName(), REL_UNMATCHED.getName(), REL_FAILURE.getName(), "success", "original")));
+
+	private static final Validator ROUTE_NAME_VALIDATOR = new Validator() {
+
+		@Override
+		public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+
+			return new ValidationResult.Builder().subject(subject).input(input).valid(!RESERVED_ROUTE_NAMES.contains(subject))
+					.explanation("the name of a dynamic property can't be one of " + RESERVED_ROUTE_NAMES).build();
+
+		}
+
+	};
+
 	private List<PropertyDescriptor> descriptors;
-	private Set<Relationship> relationships;
+	private volatile Set<Relationship> relationships;
+	
+	// The dynamic property holding the EQL query of each dynamic relationship.
+	private volatile Map<Relationship, PropertyDescriptor> queryRoutes = Collections.emptyMap();
+	private volatile boolean routeUnmatched;
 	
 	private Gson gson;
 	
+	// Queries without Expression Language are validated when the processor is scheduled.
+	private volatile Map<String, ValidatedEqlQuery> scheduledQueries;
+	private volatile Map<String, ValidatedEqlQuery> queryCache;
+	private volatile ExecutorService executor;
+	
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		
 		descriptors = new ArrayList<PropertyDescriptor>();
 		descriptors.add(EQL_QUERY);
+		descriptors.add(QUERY_CACHE_SIZE);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(EMPTY_RESULTS);
+		descriptors.add(ROUTE_UNMATCHED);
+		descriptors.add(INDEX_ENTITIES);
+		descriptors.add(FILTER_THREADS);
+		descriptors.add(PARALLEL_THRESHOLD);
 		descriptors = Collections.unmodifiableList(descriptors);
 
 		relationships = new HashSet<Relationship>();
@@ -105,9 +235,171 @@ public class EqlProcessor extends AbstractProcessor {
 		return descriptors;
 	}
 
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		
+		return new PropertyDescriptor.Builder()
+				.name(propertyDescriptorName)
+				.description("Writes the entities matching this EQL query to the " + propertyDescriptorName + " relationship.")
+				.required(false)
+				.dynamic(true)
+				.expressionLanguageSupported(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.addValidator(ROUTE_NAME_VALIDATOR)
+				.build();
+		
+	}
+	
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+
+		final List<ValidationResult> results = new ArrayList<>();
+
+		for (final Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+
+			final PropertyDescriptor descriptor = property.getKey();
+			final String query = property.getValue();
+
+			// Queries using Expression Language can only be validated once they are evaluated.
+			if ((descriptor.equals(EQL_QUERY) || descriptor.isDynamic()) && query != null && !context.isExpressionLanguagePresent(query)) {
+
+				try {
+
+					ValidatedEqlQuery.validate(query);
+
+				} catch (IllegalArgumentException ex) {
+
+					results.add(new ValidationResult.Builder().subject(descriptor.getName()).input(query).valid(false)
+							.explanation(ex.getMessage()).build());
+
+				}
+
+			}
+
+		}
+
+		return results;
+
+	}
+
+	@Override
+	public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+		
+		if (!descriptor.isDynamic() && !descriptor.equals(ROUTE_UNMATCHED)) {
+			return;
+		}
+		
+		synchronized (this) {
+			
+			final Map<Relationship, PropertyDescriptor> newQueryRoutes = new HashMap<>(queryRoutes);
+			
+			if (descriptor.isDynamic()) {
+				
+				final Relationship relationship = new Relationship.Builder().name(descriptor.getName()).build();
+				
+				if (newValue == null || RESERVED_ROUTE_NAMES.contains(descriptor.getName())) {
+					newQueryRoutes.remove(relationship);
+				} else {
+					newQueryRoutes.put(relationship, descriptor);
+				}
+				
+			} else {
+				
+				// The unmatched relationship is opt-in so existing flows don't need to connect it.
+				routeUnmatched = Boolean.parseBoolean(newValue);
+				
+			}
+			
+			final Set<Relationship> newRelationships = new HashSet<>();
+			newRelationships.add(REL_MATCHES);
+			newRelationships.add(REL_FAILURE);
+			
+			if (routeUnmatched) {
+				newRelationships.add(REL_UNMATCHED);
+			}
+			
+			newRelationships.addAll(newQueryRoutes.keySet());
+			
+			queryRoutes = Collections.unmodifiableMap(newQueryRoutes);
+			relationships = Collections.unmodifiableSet(newRelationships);
+			
+		}
+		
+	}
+	
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
 
+		final List<PropertyValue> queries = new ArrayList<>();
+		queries.add(context.getProperty(EQL_QUERY));
+		
+		for (final PropertyDescriptor descriptor : queryRoutes.values()) {
+			queries.add(context.getProperty(descriptor));
+		}
+		
+		final Map<String, ValidatedEqlQuery> newScheduledQueries = new HashMap<>();
+		
+		for (final PropertyValue eql : queries) {
+			
+			if (!eql.isExpressionLanguagePresent()) {
+				
+				final String query = eql.evaluateAttributeExpressions().getValue();
+				newScheduledQueries.put(query, ValidatedEqlQuery.validate(query));
+				
+			}
+			
+		}
+		
+		scheduledQueries = newScheduledQueries;
+		
+		final int cacheSize = context.getProperty(QUERY_CACHE_SIZE).asInteger();
+		
+		queryCache = Collections.synchronizedMap(new LinkedHashMap<String, ValidatedEqlQuery>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ValidatedEqlQuery> eldest) {
+				return size() > cacheSize;
+			}
+			
+		});
+		
+		final int threads = context.getProperty(FILTER_THREADS).asInteger();
+		
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+		
+	}
+	
+	@OnStopped
+	public void onStopped() {
+		
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		
+	}
+	
+	private ValidatedEqlQuery getValidatedQuery(final String eql) {
+		
+		final ValidatedEqlQuery query = scheduledQueries.get(eql);
+		
+		if (query != null) {
+			return query;
+		}
+		
+		ValidatedEqlQuery cachedQuery = queryCache.get(eql);
+		
+		if (cachedQuery == null) {
+			cachedQuery = ValidatedEqlQuery.validate(eql);
+			queryCache.put(eql, cachedQuery);
+		}
+		
+		return cachedQuery;
+		
 	}
 
 	@Override
@@ -119,41 +411,470 @@ public class EqlProcessor extends AbstractProcessor {
 			return;
 		}
 		
-		final String eql = ctx.getProperty(EQL_QUERY).getValue();
-
-		final AtomicReference<String> value = new AtomicReference<>();
+		final String eql = ctx.getProperty(EQL_QUERY).evaluateAttributeExpressions(flowFile).getValue();
+		final boolean dropEmpty = EMPTY_RESULTS_DROP.equals(ctx.getProperty(EMPTY_RESULTS).getValue());
+		
+		final Map<Relationship, FlowFile> children = new HashMap<>();
 		
 		try {
-						
-			flowFile = session.write(flowFile, new StreamCallback() {
+			
+			final FilterPass pass = new FilterPass(getValidatedQuery(eql), ctx.getProperty(BATCH_SIZE).asInteger(), ctx.getProperty(INDEX_ENTITIES).asBoolean(),
+					ctx.getProperty(FILTER_THREADS).asInteger(), ctx.getProperty(PARALLEL_THRESHOLD).asInteger(), dropEmpty);
+			
+			for (final Map.Entry<Relationship, PropertyDescriptor> route : queryRoutes.entrySet()) {
+				pass.addRoute(route.getKey(), getValidatedQuery(ctx.getProperty(route.getValue()).evaluateAttributeExpressions(flowFile).getValue()));
+			}
+			
+			// The complement is only worth writing when something consumes it.
+			if (ctx.getProperty(ROUTE_UNMATCHED).asBoolean() && ctx.hasConnection(REL_UNMATCHED)) {
+				pass.addUnmatched();
+			}
+			
+			final FlowFile parent = flowFile;
+			
+			if (dropEmpty) {
 				
-				@Override
-				public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+				// The matches are written to a child like the other results so an empty result is never written.
+				session.read(flowFile, new InputStreamCallback() {
 					
-					String input = IOUtils.toString(inputStream, Charset.forName("UTF-8"));
+					@Override
+					public void process(final InputStream inputStream) throws IOException {
+						pass.run(session, parent, children, inputStream, null);
+					}
 					
-					Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
-					List<Entity> entities = gson.fromJson(input, listType);
+				});
+				
+			} else {
+			
+				flowFile = session.write(flowFile, new StreamCallback() {
 					
-					Collection<Entity> filteredEntities = EqlFilters.filterEntities(entities, eql);
-
-					final String json = gson.toJson(filteredEntities);
-					value.set(json);
-					IOUtils.write(json, outputStream, Charset.forName("UTF-8"));							
-	
-				}
+					@Override
+					public void process(final InputStream inputStream, final OutputStream outputStream) throws IOException {
+						pass.run(session, parent, children, inputStream, outputStream);
+					}
+					
+				});
 				
-			});
+			}
+			
+			for (final Relationship relationship : new ArrayList<>(children.keySet())) {
+				children.put(relationship, session.putAttribute(children.get(relationship), MATCH_COUNT_ATTRIBUTE, String.valueOf(pass.getCount(relationship))));
+			}
 			
-			session.transfer(flowFile, REL_MATCHES);
+			for (final Map.Entry<Relationship, FlowFile> child : children.entrySet()) {
+				session.transfer(session.putAttribute(child.getValue(), ENTITY_COUNT_ATTRIBUTE, String.valueOf(pass.entityCount)), child.getKey());
+			}
+			
+			if (dropEmpty) {
+				
+				session.remove(flowFile);
+				
+			} else {
+				
+				final Map<String, String> attributes = new HashMap<>();
+				attributes.put(MATCH_COUNT_ATTRIBUTE, String.valueOf(pass.matchCount));
+				attributes.put(ENTITY_COUNT_ATTRIBUTE, String.valueOf(pass.entityCount));
+				
+				session.transfer(session.putAllAttributes(flowFile, attributes), REL_MATCHES);
+				
+			}
 			
 		} catch (Exception ex) {
 			
 			getLogger().error(String.format("Unable to filter entities with EQL: %s. Exception: %s", eql, ex.getMessage()), ex);
+			session.remove(children.values());
 			session.transfer(flowFile, REL_FAILURE);
 			
 		}
 
 	}
 	
+	private void write(final Collection<Entity> entities, final JsonWriter jsonWriter) {
+		
+		for (Entity entity : entities) {
+			gson.toJson(entity, Entity.class, jsonWriter);
+		}
+		
+	}
+	
+	/**
+	 * A single read of an entity array that evaluates the processor's query and the
+	 * queries of any dynamic relationships.
+	 */
+	private class FilterPass {
+		
+		private final ValidatedEqlQuery query;
+		private final int batchSize;
+		private final boolean index;
+		private final int filterThreads;
+		private final int parallelThreshold;
+		private boolean streamable;
+		
+		private final boolean dropEmpty;
+		private boolean unmatched;
+		private boolean matchesChild;
+		
+		private final Map<Relationship, ValidatedEqlQuery> routedQueries = new HashMap<>();
+		
+		// The state of the read, set by run().
+		private ProcessSession session;
+		private FlowFile parent;
+		private Map<Relationship, FlowFile> children;
+		private JsonReader jsonReader;
+		private JsonWriter matchesWriter;
+		
+		// The open writer of each child and the entities of the current batch not yet written to the children.
+		private final Map<Relationship, JsonWriter> writers = new HashMap<>();
+		private Map<Relationship, Collection<Entity>> pending;
+		
+		// The number of entities written to each child, keyed by its relationship.
+		private final Map<Relationship, Long> counts = new HashMap<>();
+		
+		private long entityCount;
+		private long matchCount;
+		
+		private FilterPass(final ValidatedEqlQuery query, final int batchSize, final boolean index, final int filterThreads, final int parallelThreshold,
+				final boolean dropEmpty) {
+			this.query = query;
+			this.batchSize = batchSize;
+			this.index = index;
+			this.filterThreads = filterThreads;
+			this.parallelThreshold = parallelThreshold;
+			this.dropEmpty = dropEmpty;
+			this.streamable = query.isStreamable();
+		}
+		
+		private void addRoute(final Relationship relationship, final ValidatedEqlQuery routedQuery) {
+			routedQueries.put(relationship, routedQuery);
+			streamable &= routedQuery.isStreamable();
+		}
+		
+		/**
+		 * Writes the entities not matching the query to a child routed to {@link EqlProcessor#REL_UNMATCHED}.
+		 */
+		private void addUnmatched() {
+			unmatched = true;
+		}
+		
+		/**
+		 * Gets the number of entities written to a child.
+		 * @param relationship The relationship of the child.
+		 * @return The number of entities.
+		 */
+		private long getCount(final Relationship relationship) {
+			final Long count = counts.get(relationship);
+			return count == null ? 0 : count;
+		}
+		
+		/**
+		 * Reads the entities a batch at a time so the whole array is never held in memory. The children are
+		 * written as the entities are read. Each child is created when it is first needed, so when empty results
+		 * are dropped a child without entities is never created.
+		 * @param session The session.
+		 * @param parent The FlowFile being filtered.
+		 * @param children Receives the children, keyed by their relationships.
+		 * @param inputStream The entity array.
+		 * @param matchesOutputStream Receives the entities matching the query, or <code>null</code> to write
+		 * them to a child routed to {@link EqlProcessor#REL_MATCHES}.
+		 */
+		private void run(final ProcessSession session, final FlowFile parent, final Map<Relationship, FlowFile> children,
+				final InputStream inputStream, final OutputStream matchesOutputStream) throws IOException {
+			
+			this.session = session;
+			this.parent = parent;
+			this.children = children;
+			
+			this.matchesChild = matchesOutputStream == null;
+			
+			jsonReader = new JsonReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+			jsonReader.beginArray();
+			
+			if (!matchesChild) {
+				matchesWriter = gson.newJsonWriter(new OutputStreamWriter(matchesOutputStream, Charset.forName("UTF-8")));
+				matchesWriter.beginArray();
+			}
+			
+			filterRemaining();
+			
+			jsonReader.endArray();
+			
+			if (!matchesChild) {
+				matchesWriter.endArray();
+				matchesWriter.flush();
+			}
+			
+		}
+		
+		/**
+		 * Filters the rest of the entities. A child is opened by running the rest of the
+		 * pass inside its write, so every open child is written during the single read.
+		 */
+		private void filterRemaining() throws IOException {
+			
+			while (true) {
+				
+				for (final Relationship relationship : getChildRelationships()) {
+					
+					if (!writers.containsKey(relationship) && (!dropEmpty || (pending != null && !pending.get(relationship).isEmpty()))) {
+						openChild(relationship);
+						return;
+					}
+					
+				}
+				
+				if (pending != null) {
+					writePending();
+				} else if (!filterBatch()) {
+					return;
+				}
+				
+			}
+			
+		}
+		
+		private void openChild(final Relationship relationship) throws IOException {
+			
+			children.put(relationship, session.create(parent));
+			
+			children.put(relationship, session.write(children.get(relationship), new OutputStreamCallback() {
+				
+				@Override
+				public void process(final OutputStream outputStream) throws IOException {
+					
+					final JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(outputStream, Charset.forName("UTF-8")));
+					writer.beginArray();
+					
+					writers.put(relationship, writer);
+					counts.put(relationship, 0L);
+					
+					filterRemaining();
+					
+					writer.endArray();
+					writer.flush();
+					
+				}
+				
+			}));
+			
+		}
+		
+		private List<Relationship> getChildRelationships() {
+			
+			final List<Relationship> relationships = new ArrayList<>();
+			
+			if (matchesChild) {
+				relationships.add(REL_MATCHES);
+			}
+			
+			if (unmatched) {
+				relationships.add(REL_UNMATCHED);
+			}
+			
+			relationships.addAll(routedQueries.keySet());
+			
+			return relationships;
+			
+		}
+		
+		/**
+		 * Reads and filters the next batch of entities with every query. The matches are written
+		 * and the entities of the children are kept until they are written.
+		 * @return <code>false</code> if there are no more entities.
+		 */
+		private boolean filterBatch() throws IOException {
+			
+			if (!jsonReader.hasNext()) {
+				return false;
+			}
+			
+			final List<Entity> entities = new ArrayList<Entity>();
+			
+			// Queries that limit or order their results must see all of the entities at once.
+			while (jsonReader.hasNext() && (!streamable || entities.size() < batchSize)) {
+				entities.add(gson.<Entity>fromJson(jsonReader, Entity.class));
+			}
+			
+			final Map<ValidatedEqlQuery, Collection<Entity>> results = evaluate(entities);
+			
+			final Collection<Entity> matches = results.get(query);
+			
+			entityCount += entities.size();
+			matchCount += matches.size();
+			
+			pending = new HashMap<>();
+			
+			if (matchesChild) {
+				pending.put(REL_MATCHES, matches);
+			} else {
+				write(matches, matchesWriter);
+			}
+			
+			if (unmatched) {
+				pending.put(REL_UNMATCHED, complement(entities, matches));
+			}
+			
+			for (final Map.Entry<Relationship, ValidatedEqlQuery> routedQuery : routedQueries.entrySet()) {
+				pending.put(routedQuery.getKey(), results.get(routedQuery.getValue()));
+			}
+			
+			return true;
+			
+		}
+		
+		private void writePending() {
+			
+			for (final Map.Entry<Relationship, Collection<Entity>> entities : pending.entrySet()) {
+				
+				final JsonWriter writer = writers.get(entities.getKey());
+				
+				// Only a child that would be empty so far is not open.
+				if (writer != null) {
+					write(entities.getValue(), writer);
+					counts.put(entities.getKey(), counts.get(entities.getKey()) + entities.getValue().size());
+				}
+				
+			}
+			
+			pending = null;
+			
+		}
+		
+		/**
+		 * Evaluates every query against a batch. Large batches are split into contiguous
+		 * partitions evaluated in parallel, and each query's matches are concatenated in
+		 * partition order so they keep the order of the entities.
+		 */
+		private Map<ValidatedEqlQuery, Collection<Entity>> evaluate(final List<Entity> entities) {
+			
+			final ExecutorService executor = EqlProcessor.this.executor;
+			
+			// Queries that limit or order their results must see the whole batch at once.
+			if (executor == null || !streamable || entities.size() < parallelThreshold) {
+				return evaluatePartition(entities);
+			}
+			
+			final int partitionSize = (entities.size() + filterThreads - 1) / filterThreads;
+			final List<Future<Map<ValidatedEqlQuery, Collection<Entity>>>> partitions = new ArrayList<>();
+			
+			try {
+				
+				for (int start = 0; start < entities.size(); start += partitionSize) {
+					
+					final List<Entity> partition = entities.subList(start, Math.min(start + partitionSize, entities.size()));
+					
+					partitions.add(executor.submit(new Callable<Map<ValidatedEqlQuery, Collection<Entity>>>() {
+						
+						@Override
+						public Map<ValidatedEqlQuery, Collection<Entity>> call() throws Exception {
+							return evaluatePartition(partition);
+						}
+						
+					}));
+					
+				}
+				
+				final Map<ValidatedEqlQuery, Collection<Entity>> results = new HashMap<>();
+				
+				for (final Future<Map<ValidatedEqlQuery, Collection<Entity>>> partition : partitions) {
+					
+					for (final Map.Entry<ValidatedEqlQuery, Collection<Entity>> result : partition.get().entrySet()) {
+						
+						Collection<Entity> matches = results.get(result.getKey());
+						
+						if (matches == null) {
+							matches = new ArrayList<>();
+							results.put(result.getKey(), matches);
+						}
+						
+						matches.addAll(result.getValue());
+						
+					}
+					
+				}
+				
+				return results;
+				
+			} catch (InterruptedException ex) {
+				
+				Thread.currentThread().interrupt();
+				throw new ProcessException("Interrupted while filtering entities.", ex);
+				
+			} catch (ExecutionException ex) {
+				
+				throw new ProcessException("Unable to filter entities.", ex.getCause());
+				
+			} finally {
+				
+				for (final Future<Map<ValidatedEqlQuery, Collection<Entity>>> partition : partitions) {
+					partition.cancel(true);
+				}
+				
+			}
+			
+		}
+		
+		/**
+		 * Evaluates every query against some entities. Each distinct query is evaluated
+		 * once even when several relationships share it.
+		 */
+		private Map<ValidatedEqlQuery, Collection<Entity>> evaluatePartition(final List<Entity> entities) {
+			
+			final Map<ValidatedEqlQuery, Collection<Entity>> results = new HashMap<>();
+			
+			// The index is built once and shared by every query.
+			final EntityIndex entityIndex = index ? new EntityIndex(entities) : null;
+			
+			results.put(query, filter(query, entities, entityIndex));
+			
+			for (final ValidatedEqlQuery routedQuery : routedQueries.values()) {
+				
+				if (!results.containsKey(routedQuery)) {
+					results.put(routedQuery, filter(routedQuery, entities, entityIndex));
+				}
+				
+			}
+			
+			return results;
+			
+		}
+		
+		private Collection<Entity> filter(final ValidatedEqlQuery query, final List<Entity> entities, final EntityIndex entityIndex) {
+			return entityIndex == null ? query.filter(entities) : query.filter(entityIndex);
+		}
+		
+		/**
+		 * Gets the entities, in their original order, that are not among the matches.
+		 */
+		private List<Entity> complement(final List<Entity> entities, final Collection<Entity> matches) {
+			
+			// Matches are counted so duplicate entities are only excluded as many times as they matched.
+			final Map<Entity, Integer> remainingMatches = new HashMap<>();
+			
+			for (final Entity match : matches) {
+				final Integer count = remainingMatches.get(match);
+				remainingMatches.put(match, count == null ? 1 : count + 1);
+			}
+			
+			final List<Entity> unmatched = new ArrayList<>();
+			
+			for (final Entity entity : entities) {
+				
+				final Integer count = remainingMatches.get(entity);
+				
+				if (count == null) {
+					unmatched.add(entity);
+				} else if (count == 1) {
+					remainingMatches.remove(entity);
+				} else {
+					remainingMatches.put(entity, count - 1);
+				}
+				
+			}
+			
+			return unmatched;
+			
+		}
+		
+	}
+	
 }
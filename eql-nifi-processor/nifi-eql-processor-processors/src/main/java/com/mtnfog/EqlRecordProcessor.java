@@ -0,0 +1,394 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import com.mtnfog.entity.Entity;
+
+@Tags({ "query, entities, extraction, record" })
+@CapabilityDescription("Provides entity filtering using the Entity Query Language on records. Each record is mapped "
+		+ "onto an entity by field name and the records whose entities match the query are written with a Record Writer "
+		+ "in their original order. Queries that order, limit or offset their results are not supported.")
+@SeeAlso({ EqlProcessor.class })
+@WritesAttributes({ @WritesAttribute(attribute = "record.count", description = "The number of records in the FlowFile."),
+	@WritesAttribute(attribute = "mime.type", description = "The MIME type given by the Record Writer.") })
+@SideEffectFree
+@SupportsBatching
+public class EqlRecordProcessor extends AbstractProcessor {
+
+	public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+			.name("Record Reader")
+			.description("The Record Reader used to read the incoming records.")
+			.identifiesControllerService(RecordReaderFactory.class)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+			.name("Record Writer")
+			.description("The Record Writer used to write the matching records.")
+			.identifiesControllerService(RecordSetWriterFactory.class)
+			.required(true)
+			.build();
+
+	public static final Relationship REL_MATCHES = new Relationship.Builder()
+			.name("matches").description("The records whose entities match the EQL query.").build();
+
+	public static final Relationship REL_UNMATCHED = new Relationship.Builder()
+			.name("unmatched")
+			.description("The records whose entities do not match the EQL query. These are only written when this relationship is connected.")
+			.build();
+
+	public static final Relationship REL_FAILURE = new Relationship.Builder()
+			.name("failure").description("failure").build();
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	// The query validated when the processor is scheduled, or null if the query uses Expression Language.
+	private volatile ValidatedEqlQuery validatedQuery;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+
+		descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(RECORD_READER);
+		descriptors.add(RECORD_WRITER);
+		descriptors.add(EqlProcessor.EQL_QUERY);
+		descriptors.add(EqlProcessor.BATCH_SIZE);
+		descriptors = Collections.unmodifiableList(descriptors);
+
+		relationships = new HashSet<Relationship>();
+		relationships.add(REL_MATCHES);
+		relationships.add(REL_UNMATCHED);
+		relationships.add(REL_FAILURE);
+		relationships = Collections.unmodifiableSet(relationships);
+
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+
+		final List<ValidationResult> results = new ArrayList<>();
+		final String query = context.getProperty(EqlProcessor.EQL_QUERY).getValue();
+
+		if (!context.isExpressionLanguagePresent(query)) {
+
+			try {
+
+				if (!ValidatedEqlQuery.validate(query).isStreamable()) {
+
+					results.add(new ValidationResult.Builder().subject(EqlProcessor.EQL_QUERY.getName()).input(query).valid(false)
+							.explanation("matching records are written in their original order so the query can't order, limit or offset its results").build());
+
+				}
+
+			} catch (IllegalArgumentException ex) {
+
+				results.add(new ValidationResult.Builder().subject(EqlProcessor.EQL_QUERY.getName()).input(query).valid(false)
+						.explanation(ex.getMessage()).build());
+
+			}
+
+		}
+
+		return results;
+
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+
+		final PropertyValue eql = context.getProperty(EqlProcessor.EQL_QUERY);
+
+		if (eql.isExpressionLanguagePresent()) {
+			validatedQuery = null;
+		} else {
+			validatedQuery = ValidatedEqlQuery.validate(eql.evaluateAttributeExpressions().getValue());
+		}
+
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext ctx, final ProcessSession session) throws ProcessException {
+
+		FlowFile flowFile = session.get();
+
+		if (flowFile == null) {
+			return;
+		}
+
+		final RecordReaderFactory readerFactory = ctx.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+		final RecordSetWriterFactory writerFactory = ctx.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+		final String eql = ctx.getProperty(EqlProcessor.EQL_QUERY).evaluateAttributeExpressions(flowFile).getValue();
+		final int batchSize = ctx.getProperty(EqlProcessor.BATCH_SIZE).asInteger();
+
+		final Map<String, String> originalAttributes = flowFile.getAttributes();
+		final Map<String, String> matchesAttributes = new HashMap<>();
+		final Map<String, String> unmatchedAttributes = new HashMap<>();
+
+		// The unmatched records are only worth writing when something consumes them.
+		final AtomicReference<FlowFile> unmatched = new AtomicReference<>();
+
+		try {
+
+			final ValidatedEqlQuery query = validatedQuery != null ? validatedQuery : ValidatedEqlQuery.validate(eql);
+
+			// Matches are mapped back to records by value so the order and number of the query's results can't be kept.
+			if (!query.isStreamable()) {
+				throw new IllegalArgumentException(String.format("The EQL query %s orders, limits or offsets its results, which is not supported for records.", eql));
+			}
+
+			if (ctx.hasConnection(REL_UNMATCHED)) {
+				unmatched.set(session.create(flowFile));
+			}
+
+			flowFile = session.write(flowFile, new StreamCallback() {
+
+				@Override
+				public void process(final InputStream inputStream, final OutputStream outputStream) throws IOException {
+
+					try (final RecordReader reader = readerFactory.createRecordReader(originalAttributes, inputStream, getLogger())) {
+
+						final RecordSchema writeSchema = writerFactory.getSchema(originalAttributes, reader.getSchema());
+
+						try (final RecordSetWriter matchesWriter = writerFactory.createWriter(getLogger(), writeSchema, outputStream)) {
+
+							if (unmatched.get() == null) {
+
+								filter(reader, query, batchSize, matchesWriter, null, matchesAttributes, unmatchedAttributes);
+
+							} else {
+
+								unmatched.set(session.write(unmatched.get(), new OutputStreamCallback() {
+
+									@Override
+									public void process(final OutputStream unmatchedOutputStream) throws IOException {
+
+										try (final RecordSetWriter unmatchedWriter = writerFactory.createWriter(getLogger(), writeSchema, unmatchedOutputStream)) {
+											filter(reader, query, batchSize, matchesWriter, unmatchedWriter, matchesAttributes, unmatchedAttributes);
+										} catch (SchemaNotFoundException | MalformedRecordException ex) {
+											throw new ProcessException("Unable to read the records.", ex);
+										}
+
+									}
+
+								}));
+
+							}
+
+						}
+
+					} catch (SchemaNotFoundException | MalformedRecordException ex) {
+
+						throw new ProcessException("Unable to read the records.", ex);
+
+					}
+
+				}
+
+			});
+
+			if (unmatched.get() != null) {
+				session.transfer(session.putAllAttributes(unmatched.get(), unmatchedAttributes), REL_UNMATCHED);
+			}
+
+			session.transfer(session.putAllAttributes(flowFile, matchesAttributes), REL_MATCHES);
+
+		} catch (Exception ex) {
+
+			getLogger().error(String.format("Unable to filter records with EQL: %s. Exception: %s", eql, ex.getMessage()), ex);
+
+			if (unmatched.get() != null) {
+				session.remove(unmatched.get());
+			}
+
+			session.transfer(flowFile, REL_FAILURE);
+
+		}
+
+	}
+
+	/**
+	 * Reads the records a batch at a time, writing each record to the matches or
+	 * unmatched writer in its original order.
+	 */
+	private void filter(final RecordReader reader, final ValidatedEqlQuery query, final int batchSize,
+			final RecordSetWriter matchesWriter, final RecordSetWriter unmatchedWriter,
+			final Map<String, String> matchesAttributes, final Map<String, String> unmatchedAttributes)
+			throws IOException, MalformedRecordException {
+
+		final List<Record> records = new ArrayList<>();
+		final List<Entity> entities = new ArrayList<>();
+
+		matchesWriter.beginRecordSet();
+
+		if (unmatchedWriter != null) {
+			unmatchedWriter.beginRecordSet();
+		}
+
+		Record record;
+
+		while ((record = reader.nextRecord()) != null) {
+
+			records.add(record);
+			entities.add(toEntity(record));
+
+			if (records.size() >= batchSize) {
+				filter(records, entities, query, matchesWriter, unmatchedWriter);
+				records.clear();
+				entities.clear();
+			}
+
+		}
+
+		filter(records, entities, query, matchesWriter, unmatchedWriter);
+
+		putAttributes(matchesWriter, matchesAttributes);
+
+		if (unmatchedWriter != null) {
+			putAttributes(unmatchedWriter, unmatchedAttributes);
+		}
+
+	}
+
+	private void filter(final List<Record> records, final List<Entity> entities, final ValidatedEqlQuery query,
+			final RecordSetWriter matchesWriter, final RecordSetWriter unmatchedWriter) throws IOException {
+
+		final Collection<Entity> matches = query.filter(entities);
+
+		// Matches are counted so duplicate entities are only matched as many times as they were returned.
+		final Map<Entity, Integer> remainingMatches = new HashMap<>();
+
+		for (final Entity match : matches) {
+			final Integer count = remainingMatches.get(match);
+			remainingMatches.put(match, count == null ? 1 : count + 1);
+		}
+
+		for (int i = 0; i < records.size(); i++) {
+
+			final Integer count = remainingMatches.get(entities.get(i));
+
+			if (count == null) {
+
+				if (unmatchedWriter != null) {
+					unmatchedWriter.write(records.get(i));
+				}
+
+			} else {
+
+				if (count == 1) {
+					remainingMatches.remove(entities.get(i));
+				} else {
+					remainingMatches.put(entities.get(i), count - 1);
+				}
+
+				matchesWriter.write(records.get(i));
+
+			}
+
+		}
+
+	}
+
+	private void putAttributes(final RecordSetWriter writer, final Map<String, String> attributes) throws IOException {
+
+		final WriteResult writeResult = writer.finishRecordSet();
+
+		attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+		attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+		attributes.putAll(writeResult.getAttributes());
+
+	}
+
+	/**
+	 * Maps a record onto an entity. Fields are matched to the entity's properties by
+	 * name and fields the entity does not have are ignored.
+	 */
+	private Entity toEntity(final Record record) {
+
+		final Entity entity = new Entity();
+
+		entity.setText(record.getAsString("text"));
+		entity.setType(record.getAsString("type"));
+		entity.setContext(record.getAsString("context"));
+		entity.setDocumentId(record.getAsString("documentId"));
+		entity.setLanguageCode(record.getAsString("languageCode"));
+
+		final Double confidence = record.getAsDouble("confidence");
+
+		if (confidence != null) {
+			entity.setConfidence(confidence);
+		}
+
+		return entity;
+
+	}
+
+}
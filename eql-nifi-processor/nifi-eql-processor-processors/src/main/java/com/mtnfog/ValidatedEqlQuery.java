@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2017 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mtnfog.entity.Entity;
+import com.mtnfog.entitydb.eql.filters.EqlFilters;
+
+/**
+ * An EQL query that has been validated once and can be reused to filter any number of
+ * entity collections. All EQL evaluation goes through this class. eql-filters parses the
+ * query on every call, so reusing an instance saves the validation and the analysis of
+ * the query's clauses but not the parsing.
+ */
+public class ValidatedEqlQuery {
+
+	// Clauses whose result depends on the whole collection rather than on each entity.
+	private static final Pattern COLLECTION_CLAUSE = Pattern.compile("\\b(limit|offset|order\\s+by)\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern QUOTED_VALUE = Pattern.compile("\"[^\"]*\"");
+	
+	// A where clause that is not a plain conjunction, which cannot be used to prune entities.
+	private static final Pattern NON_CONJUNCTIVE = Pattern.compile("\\bor\\b|\\bnot\\b|[()!]", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WHERE = Pattern.compile("\\bwhere\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern AND = Pattern.compile("\\band\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern EQUALITY_TERM = Pattern.compile("^\\s*(\\w+)\\s*=\\s*\"(\\d+)\"\\s*$");
+
+	private final String eql;
+	private final boolean streamable;
+	private final Map<String, String> indexTerms;
+
+	private ValidatedEqlQuery(final String eql) {
+		this.eql = eql;
+		this.streamable = !COLLECTION_CLAUSE.matcher(QUOTED_VALUE.matcher(eql).replaceAll("\"\"")).find();
+		this.indexTerms = Collections.unmodifiableMap(getIndexTerms(eql));
+	}
+
+	/**
+	 * Validates an EQL query.
+	 * @param eql The EQL query.
+	 * @return The {@link ValidatedEqlQuery}.
+	 * @throws IllegalArgumentException Thrown if the query is not valid EQL.
+	 */
+	public static ValidatedEqlQuery validate(final String eql) {
+
+		try {
+
+			EqlFilters.filterEntities(Collections.<Entity>emptyList(), eql);
+
+		} catch (Exception ex) {
+
+			throw new IllegalArgumentException(String.format("Invalid EQL query: %s. Exception: %s", eql, ex.getMessage()), ex);
+
+		}
+
+		return new ValidatedEqlQuery(eql);
+
+	}
+
+	/**
+	 * Filters entities.
+	 * @param entities The entities.
+	 * @return The entities matching the query.
+	 */
+	public Collection<Entity> filter(final Collection<Entity> entities) {
+		return EqlFilters.filterEntities(entities, eql);
+	}
+
+	/**
+	 * Filters indexed entities. Only the entities that can match the query's equality
+	 * terms on indexed fields are evaluated.
+	 * @param index The {@link EntityIndex} of the entities.
+	 * @return The entities matching the query.
+	 */
+	public Collection<Entity> filter(final EntityIndex index) {
+		
+		if (indexTerms.isEmpty()) {
+			return filter(index.getEntities());
+		}
+		
+		return EqlFilters.filterEntities(index.getCandidates(indexTerms), eql);
+		
+	}
+
+	/**
+	 * Gets whether the query can filter a collection a portion at a time. Queries
+	 * that limit or order their results must see the whole collection at once.
+	 * @return <code>true</code> if each entity can be evaluated independently of the others.
+	 */
+	public boolean isStreamable() {
+		return streamable;
+	}
+
+	public String getQuery() {
+		return eql;
+	}
+
+	/**
+	 * Gets the equality terms on indexed fields that every match must satisfy. Terms are only
+	 * taken from a where clause that is a conjunction so each one is a necessary condition.
+	 */
+	private static Map<String, String> getIndexTerms(final String eql) {
+
+		final Map<String, String> terms = new HashMap<>();
+		
+		// Quoted values are replaced by their positions so keywords inside them are not mistaken for the query's.
+		final List<String> values = new ArrayList<>();
+		final Matcher value = QUOTED_VALUE.matcher(eql);
+		final StringBuffer structure = new StringBuffer();
+		
+		while (value.find()) {
+			value.appendReplacement(structure, "\"" + values.size() + "\"");
+			values.add(value.group().substring(1, value.group().length() - 1));
+		}
+		
+		value.appendTail(structure);
+		
+		final Matcher where = WHERE.matcher(structure);
+
+		if (!where.find()) {
+			return terms;
+		}
+
+		final Matcher end = COLLECTION_CLAUSE.matcher(structure);
+		final String clause = structure.substring(where.end(), end.find(where.end()) ? end.start() : structure.length());
+
+		if (NON_CONJUNCTIVE.matcher(clause).find()) {
+			return terms;
+		}
+
+		for (final String term : AND.split(clause)) {
+
+			final Matcher equality = EQUALITY_TERM.matcher(term);
+
+			if (equality.matches() && EntityIndex.isIndexable(equality.group(1))) {
+				terms.put(equality.group(1), values.get(Integer.parseInt(equality.group(2))));
+			}
+
+		}
+
+		return terms;
+
+	}
+
+}
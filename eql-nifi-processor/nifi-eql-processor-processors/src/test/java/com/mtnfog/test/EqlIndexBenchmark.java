@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.mtnfog.ValidatedEqlQuery;
+import com.mtnfog.EntityIndex;
+import com.mtnfog.entity.Entity;
+
+public class EqlIndexBenchmark {
+
+    private static final int ENTITIES = 200000;
+    private static final int ITERATIONS = 10;
+
+    @Ignore("This is a benchmark that compares scanning and indexed evaluation of queries of different selectivities.")
+    @Test
+    public void compareScanAndIndex() {
+
+    	// Each query matches one of this many distinct texts, so the selectivity is its reciprocal.
+    	final int[] distinctTexts = { 1, 10, 1000, 100000 };
+
+    	for (final int distinct : distinctTexts) {
+
+    		final List<Entity> entities = new ArrayList<Entity>();
+
+    		for (int i = 0; i < ENTITIES; i++) {
+    			entities.add(new Entity("entity " + (i % distinct)));
+    		}
+
+    		final ValidatedEqlQuery query = ValidatedEqlQuery.validate("select * from entities where text = \"entity 0\"");
+
+    		for (int i = 0; i < ITERATIONS; i++) {
+
+    			long start = System.nanoTime();
+    			final int scanned = query.filter(entities).size();
+    			final long scan = System.nanoTime() - start;
+
+    			start = System.nanoTime();
+    			final EntityIndex index = new EntityIndex(entities);
+    			final long build = System.nanoTime() - start;
+
+    			start = System.nanoTime();
+    			final int indexed = query.filter(index).size();
+    			final long lookup = System.nanoTime() - start;
+
+    			System.out.println(String.format("Selectivity 1/%d: scan %d ms (%d matches), index build %d ms, indexed %d ms (%d matches)",
+    					distinct, scan / 1000000, scanned, build / 1000000, lookup / 1000000, indexed));
+
+    		}
+
+    	}
+
+    }
+
+}
@@ -21,8 +21,12 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
@@ -34,7 +38,9 @@ import org.junit.Test;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.mtnfog.EntityIndex;
 import com.mtnfog.EqlProcessor;
+import com.mtnfog.ValidatedEqlQuery;
 import com.mtnfog.entity.Entity;
 
 public class EqlProcessorTest {
@@ -102,4 +108,432 @@ public class EqlProcessorTest {
         
     }
     
-}
\ No newline at end of file
+    @Test
+    public void testOnTriggerExpressionLanguage() throws IOException {
+    	
+    	Set<Entity> entities = new HashSet<Entity>();
+    	entities.add(new Entity("George Washington"));
+    	entities.add(new Entity("Abraham Lincoln"));
+    	
+    	Gson gson = new Gson();
+    	
+    	Map<String, String> attributes = new HashMap<String, String>();
+    	attributes.put("name", "Abraham Lincoln");
+        
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"${name}\"");
+        runner.enqueue(gson.toJson(entities).getBytes(), attributes);
+        runner.enqueue(gson.toJson(entities).getBytes(), attributes);
+        runner.run(2);
+        runner.assertQueueEmpty();
+        
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES);
+        assertEquals(2, results.size());
+        
+        for (MockFlowFile result : results) {
+        	
+        	String json = IOUtils.toString(runner.getContentAsByteArray(result), "UTF-8");
+        	Type listType = new TypeToken<HashSet<Entity>>(){}.getType();
+        	Set<Entity> filteredEntities = new Gson().fromJson(json, listType);
+        	
+        	assertEquals(1, filteredEntities.size());
+        	
+        }
+        
+    }
+    
+    @Test
+    public void testOnTriggerMultipleBatches() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < 10; i++) {
+    		entities.add(new Entity(i % 3 == 0 ? "George Washington" : "Abraham Lincoln " + i));
+    	}
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "3");
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(EqlProcessor.REL_MATCHES, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0);
+
+        String json = IOUtils.toString(runner.getContentAsByteArray(result), "UTF-8");
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+        List<Entity> filteredEntities = new Gson().fromJson(json, listType);
+
+        assertEquals(4, filteredEntities.size());
+
+    }
+
+    @Test
+    public void testOnTriggerDynamicRelationships() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+    	entities.add(new Entity("George Washington"));
+    	entities.add(new Entity("Abraham Lincoln"));
+    	entities.add(new Entity("Abraham Lincoln"));
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty("washington", "select * from entities where text = \"George Washington\"");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln\"");
+        runner.setProperty("jefferson", "select * from entities where text = \"Thomas Jefferson\"");
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        assertEquals(5, runner.getProcessor().getRelationships().size());
+
+        runner.assertTransferCount(EqlProcessor.REL_MATCHES, 1);
+        runner.assertTransferCount("washington", 1);
+        runner.assertTransferCount("lincoln", 1);
+        runner.assertTransferCount("jefferson", 1);
+
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+
+        String json = IOUtils.toString(runner.getContentAsByteArray(runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0)), "UTF-8");
+        assertEquals(1, ((List<Entity>) gson.fromJson(json, listType)).size());
+
+        json = IOUtils.toString(runner.getContentAsByteArray(runner.getFlowFilesForRelationship("washington").get(0)), "UTF-8");
+        assertEquals(1, ((List<Entity>) gson.fromJson(json, listType)).size());
+
+        json = IOUtils.toString(runner.getContentAsByteArray(runner.getFlowFilesForRelationship("lincoln").get(0)), "UTF-8");
+        assertEquals(2, ((List<Entity>) gson.fromJson(json, listType)).size());
+
+        json = IOUtils.toString(runner.getContentAsByteArray(runner.getFlowFilesForRelationship("jefferson").get(0)), "UTF-8");
+        assertEquals(0, ((List<Entity>) gson.fromJson(json, listType)).size());
+
+        runner.removeProperty(runner.getProcessor().getPropertyDescriptor("jefferson"));
+
+        assertEquals(4, runner.getProcessor().getRelationships().size());
+
+    }
+
+    @Test
+    public void testOnTriggerDynamicRelationshipsMultipleBatches() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < 10; i++) {
+    		entities.add(new Entity(i % 2 == 0 ? "George Washington" : "Abraham Lincoln"));
+    	}
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "3");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln\"");
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        runner.addConnection(EqlProcessor.REL_UNMATCHED);
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertTransferCount(EqlProcessor.REL_MATCHES, 1);
+        runner.assertTransferCount(EqlProcessor.REL_UNMATCHED, 1);
+        runner.assertTransferCount("lincoln", 1);
+
+        MockFlowFile lincoln = runner.getFlowFilesForRelationship("lincoln").get(0);
+        lincoln.assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "5");
+        lincoln.assertAttributeEquals(EqlProcessor.ENTITY_COUNT_ATTRIBUTE, "10");
+
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+        List<Entity> lincolnEntities = gson.fromJson(IOUtils.toString(runner.getContentAsByteArray(lincoln), "UTF-8"), listType);
+
+        assertEquals(5, lincolnEntities.size());
+
+        for (Entity entity : lincolnEntities) {
+        	assertEquals("Abraham Lincoln", entity.getText());
+        }
+
+        runner.getFlowFilesForRelationship(EqlProcessor.REL_UNMATCHED).get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "5");
+
+    }
+
+    @Test
+    public void testReservedRouteNames() {
+
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln\"");
+        runner.assertValid();
+
+        for (String name : new String[] { "matches", "success", "failure", "unmatched", "original" }) {
+
+            runner.setProperty(name, "select * from entities");
+            runner.assertNotValid();
+
+            runner.removeProperty(runner.getProcessor().getPropertyDescriptor(name));
+            runner.assertValid();
+
+        }
+
+        assertEquals(3, runner.getProcessor().getRelationships().size());
+
+    }
+
+    @Test
+    public void testRouteUnmatched() {
+
+        assertFalse(runner.getProcessor().getRelationships().contains(EqlProcessor.REL_UNMATCHED));
+
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        assertTrue(runner.getProcessor().getRelationships().contains(EqlProcessor.REL_UNMATCHED));
+
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "false");
+        assertFalse(runner.getProcessor().getRelationships().contains(EqlProcessor.REL_UNMATCHED));
+
+    }
+
+    @Test
+    public void testInvalidQueries() {
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "not a query");
+        runner.assertNotValid();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "${query}");
+        runner.assertValid();
+
+        runner.setProperty("lincoln", "not a query");
+        runner.assertNotValid();
+
+        runner.setProperty("lincoln", "${query}");
+        runner.assertValid();
+
+    }
+
+    @Test
+    public void testOnTriggerUnmatched() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+    	entities.add(new Entity("Abraham Lincoln"));
+    	entities.add(new Entity("George Washington"));
+    	entities.add(new Entity("Thomas Jefferson"));
+    	entities.add(new Entity("Abraham Lincoln"));
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "2");
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        runner.addConnection(EqlProcessor.REL_UNMATCHED);
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertTransferCount(EqlProcessor.REL_MATCHES, 1);
+        runner.assertTransferCount(EqlProcessor.REL_UNMATCHED, 1);
+
+        MockFlowFile matches = runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0);
+        matches.assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "1");
+        matches.assertAttributeEquals(EqlProcessor.ENTITY_COUNT_ATTRIBUTE, "4");
+
+        MockFlowFile unmatched = runner.getFlowFilesForRelationship(EqlProcessor.REL_UNMATCHED).get(0);
+        unmatched.assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "3");
+        unmatched.assertAttributeEquals(EqlProcessor.ENTITY_COUNT_ATTRIBUTE, "4");
+
+        String json = IOUtils.toString(runner.getContentAsByteArray(unmatched), "UTF-8");
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+        List<Entity> unmatchedEntities = gson.fromJson(json, listType);
+
+        assertEquals(3, unmatchedEntities.size());
+        assertEquals("Abraham Lincoln", unmatchedEntities.get(0).getText());
+        assertEquals("Thomas Jefferson", unmatchedEntities.get(1).getText());
+        assertEquals("Abraham Lincoln", unmatchedEntities.get(2).getText());
+
+    }
+
+    @Test
+    public void testOnTriggerDropEmptyResults() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+    	entities.add(new Entity("George Washington"));
+    	entities.add(new Entity("Abraham Lincoln"));
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"Thomas Jefferson\"");
+        runner.setProperty(EqlProcessor.EMPTY_RESULTS, EqlProcessor.EMPTY_RESULTS_DROP);
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "1");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln\"");
+        runner.setProperty("jefferson", "select * from entities where text = \"Thomas Jefferson\"");
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        runner.addConnection(EqlProcessor.REL_UNMATCHED);
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertTransferCount(EqlProcessor.REL_MATCHES, 0);
+        runner.assertTransferCount(EqlProcessor.REL_UNMATCHED, 1);
+        runner.assertTransferCount("lincoln", 1);
+        runner.assertTransferCount("jefferson", 0);
+        runner.assertTransferCount(EqlProcessor.REL_FAILURE, 0);
+
+        runner.getFlowFilesForRelationship("lincoln").get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "1");
+        runner.getFlowFilesForRelationship(EqlProcessor.REL_UNMATCHED).get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "2");
+
+        // Only the original is dropped. The empty jefferson result is never created.
+        assertEquals(1, runner.getRemovedCount());
+
+    }
+
+    @Test
+    public void testOnTriggerDropEmptyResultsWithMatches() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+    	entities.add(new Entity("George Washington"));
+    	entities.add(new Entity("Abraham Lincoln"));
+    	entities.add(new Entity("George Washington"));
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.EMPTY_RESULTS, EqlProcessor.EMPTY_RESULTS_DROP);
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "1");
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(EqlProcessor.REL_MATCHES, 1);
+
+        MockFlowFile result = runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0);
+        result.assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "2");
+        result.assertAttributeEquals(EqlProcessor.ENTITY_COUNT_ATTRIBUTE, "3");
+
+        String json = IOUtils.toString(runner.getContentAsByteArray(result), "UTF-8");
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+        assertEquals(2, ((List<Entity>) gson.fromJson(json, listType)).size());
+
+        // The matches are written to a child of the original, which is removed.
+        assertEquals(1, runner.getRemovedCount());
+
+    }
+
+    @Test
+    public void testOnTriggerIndexed() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < 100; i++) {
+    		entities.add(new Entity(i % 10 == 0 ? "George Washington" : "Abraham Lincoln " + i));
+    	}
+
+    	entities.add(new Entity("george washington"));
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.INDEX_ENTITIES, "true");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln 11\"");
+        runner.setProperty("jefferson", "select * from entities where text = \"Thomas Jefferson\"");
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        runner.addConnection(EqlProcessor.REL_UNMATCHED);
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "10");
+        runner.getFlowFilesForRelationship(EqlProcessor.REL_UNMATCHED).get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "91");
+        runner.getFlowFilesForRelationship("lincoln").get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "1");
+        runner.getFlowFilesForRelationship("jefferson").get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "0");
+
+    }
+
+    @Test
+    public void testIndexedTermsMatchUnindexed() {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < 40; i++) {
+
+    		Entity entity = new Entity(i % 4 == 0 ? "George Washington" : i % 4 == 1 ? "george washington" : "Abraham Lincoln");
+    		entity.setType(i % 3 == 0 ? "person" : "place");
+    		entity.setContext(i % 5 == 0 ? null : "context" + (i % 2));
+    		entity.setDocumentId("document" + (i % 6));
+    		entity.setLanguageCode(i % 2 == 0 ? "eng" : "deu");
+
+    		entities.add(entity);
+
+    	}
+
+    	final EntityIndex index = new EntityIndex(entities);
+
+    	final String[][] terms = { { "text", "George Washington" }, { "text", "george washington" }, { "text", "Thomas Jefferson" },
+    			{ "type", "person" }, { "type", "PERSON" }, { "context", "context1" }, { "documentid", "document5" },
+    			{ "language", "deu" }, { "language", "fra" } };
+
+    	for (String[] term : terms) {
+
+    		assertTrue(term[0], EntityIndex.isIndexable(term[0]));
+
+    		ValidatedEqlQuery query = ValidatedEqlQuery.validate("select * from entities where " + term[0] + " = \"" + term[1] + "\"");
+    		assertEquals(term[0] + " = " + term[1], new ArrayList<Entity>(query.filter(entities)), new ArrayList<Entity>(query.filter(index)));
+
+    		// The index prunes every term rather than falling back to all of the entities.
+    		assertTrue(term[0] + " = " + term[1], index.getCandidates(Collections.singletonMap(term[0], term[1])).size() < entities.size());
+
+    	}
+
+    	ValidatedEqlQuery query = ValidatedEqlQuery.validate("select * from entities where type = \"person\" and language = \"eng\"");
+    	assertEquals(new ArrayList<Entity>(query.filter(entities)), new ArrayList<Entity>(query.filter(index)));
+
+    }
+
+    @Test
+    public void testOnTriggerParallel() throws IOException {
+
+    	List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < 250; i++) {
+    		entities.add(new Entity(i % 5 == 0 ? "George Washington" : "Abraham Lincoln " + i));
+    	}
+
+    	Gson gson = new Gson();
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty(EqlProcessor.BATCH_SIZE, "100");
+        runner.setProperty(EqlProcessor.FILTER_THREADS, "4");
+        runner.setProperty(EqlProcessor.PARALLEL_THRESHOLD, "10");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln 201\"");
+        runner.setProperty(EqlProcessor.ROUTE_UNMATCHED, "true");
+        runner.addConnection(EqlProcessor.REL_UNMATCHED);
+        runner.enqueue(gson.toJson(entities).getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.getFlowFilesForRelationship(EqlProcessor.REL_MATCHES).get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "50");
+        runner.getFlowFilesForRelationship("lincoln").get(0).assertAttributeEquals(EqlProcessor.MATCH_COUNT_ATTRIBUTE, "1");
+
+        String json = IOUtils.toString(runner.getContentAsByteArray(runner.getFlowFilesForRelationship(EqlProcessor.REL_UNMATCHED).get(0)), "UTF-8");
+        Type listType = new TypeToken<ArrayList<Entity>>(){}.getType();
+        List<Entity> unmatchedEntities = gson.fromJson(json, listType);
+
+        assertEquals(200, unmatchedEntities.size());
+
+        int previous = 0;
+
+        for (Entity entity : unmatchedEntities) {
+        	int number = Integer.parseInt(entity.getText().substring("Abraham Lincoln ".length()));
+        	assertTrue(number > previous);
+        	previous = number;
+        }
+
+    }
+
+    @Test
+    public void testOnTriggerInvalidJson() throws IOException {
+
+        runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+        runner.setProperty("lincoln", "select * from entities where text = \"Abraham Lincoln\"");
+        runner.enqueue("{\"text\":".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(EqlProcessor.REL_FAILURE, 1);
+
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.mtnfog.ValidatedEqlQuery;
+import com.mtnfog.entity.Entity;
+import com.mtnfog.entitydb.eql.filters.EqlFilters;
+
+public class EqlQueryBenchmark {
+
+    private static final String QUERY = "select * from entities where text = \"entity 0\"";
+
+    // Each FlowFile holds a few entities, which is where the per-query overhead shows.
+    private static final int FLOWFILES = 100000;
+    private static final int ENTITIES_PER_FLOWFILE = 10;
+    private static final int ITERATIONS = 5;
+
+    @Ignore("This is a benchmark that compares filtering FlowFiles directly, with a query validated per FlowFile and with a reused validated query.")
+    @Test
+    public void compareQueryReuse() {
+
+    	final List<Entity> entities = new ArrayList<Entity>();
+
+    	for (int i = 0; i < ENTITIES_PER_FLOWFILE; i++) {
+    		entities.add(new Entity("entity " + i));
+    	}
+
+    	final ValidatedEqlQuery reused = ValidatedEqlQuery.validate(QUERY);
+
+    	for (int i = 0; i < ITERATIONS; i++) {
+
+    		int matches = 0;
+    		long start = System.nanoTime();
+
+    		for (int f = 0; f < FLOWFILES; f++) {
+    			matches += EqlFilters.filterEntities(entities, QUERY).size();
+    		}
+
+    		final long direct = System.nanoTime() - start;
+
+    		start = System.nanoTime();
+
+    		for (int f = 0; f < FLOWFILES; f++) {
+    			matches += ValidatedEqlQuery.validate(QUERY).filter(entities).size();
+    		}
+
+    		final long validated = System.nanoTime() - start;
+
+    		start = System.nanoTime();
+
+    		for (int f = 0; f < FLOWFILES; f++) {
+    			matches += reused.filter(entities).size();
+    		}
+
+    		final long cached = System.nanoTime() - start;
+
+    		System.out.println(String.format("%d FlowFiles: direct %d ms, validated per FlowFile %d ms, reused %d ms (%d matches)",
+    				FLOWFILES, direct / 1000000, validated / 1000000, cached / 1000000, matches));
+
+    	}
+
+    }
+
+}
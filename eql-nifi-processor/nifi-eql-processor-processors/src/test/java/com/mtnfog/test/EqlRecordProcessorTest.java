@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog.test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mtnfog.EqlProcessor;
+import com.mtnfog.EqlRecordProcessor;
+
+public class EqlRecordProcessorTest {
+
+    private TestRunner runner;
+    private MockRecordParser reader;
+
+    @Before
+    public void init() throws InitializationException {
+
+    	runner = TestRunners.newTestRunner(EqlRecordProcessor.class);
+
+    	reader = new MockRecordParser();
+    	reader.addSchemaField("text", RecordFieldType.STRING);
+    	reader.addSchemaField("confidence", RecordFieldType.DOUBLE);
+
+    	runner.addControllerService("reader", reader);
+    	runner.addControllerService("writer", new MockRecordWriter(null, false));
+    	runner.enableControllerService(reader);
+    	runner.enableControllerService(runner.getControllerService("writer"));
+
+    	runner.setProperty(EqlRecordProcessor.RECORD_READER, "reader");
+    	runner.setProperty(EqlRecordProcessor.RECORD_WRITER, "writer");
+
+    }
+
+    @Test
+    public void filterRecords() throws IOException {
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+    	runner.setProperty(EqlProcessor.BATCH_SIZE, "2");
+
+    	reader.addRecord("George Washington", 0.9);
+    	reader.addRecord("Abraham Lincoln", 0.8);
+    	reader.addRecord("George Washington", 0.9);
+    	reader.addRecord("Thomas Jefferson", 0.7);
+    	reader.addRecord("George Washington", 0.6);
+
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(EqlRecordProcessor.REL_MATCHES, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(EqlRecordProcessor.REL_MATCHES).get(0);
+
+        result.assertAttributeEquals("record.count", "3");
+        result.assertContentEquals("George Washington,0.9\nGeorge Washington,0.9\nGeorge Washington,0.6\n");
+
+    }
+
+    @Test
+    public void filterRecordsUnmatched() throws IOException {
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"George Washington\"");
+    	runner.addConnection(EqlRecordProcessor.REL_UNMATCHED);
+
+    	reader.addRecord("Abraham Lincoln", 0.8);
+    	reader.addRecord("George Washington", 0.9);
+    	reader.addRecord("Thomas Jefferson", 0.7);
+
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertTransferCount(EqlRecordProcessor.REL_MATCHES, 1);
+        runner.assertTransferCount(EqlRecordProcessor.REL_UNMATCHED, 1);
+
+        MockFlowFile matches = runner.getFlowFilesForRelationship(EqlRecordProcessor.REL_MATCHES).get(0);
+        matches.assertAttributeEquals("record.count", "1");
+        matches.assertContentEquals("George Washington,0.9\n");
+
+        MockFlowFile unmatched = runner.getFlowFilesForRelationship(EqlRecordProcessor.REL_UNMATCHED).get(0);
+        unmatched.assertAttributeEquals("record.count", "2");
+        unmatched.assertContentEquals("Abraham Lincoln,0.8\nThomas Jefferson,0.7\n");
+
+    }
+
+    @Test
+    public void orderedQueryIsInvalid() {
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities order by confidence");
+    	runner.assertNotValid();
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities limit 1");
+    	runner.assertNotValid();
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "select * from entities where text = \"limit\"");
+    	runner.assertValid();
+
+    }
+
+    @Test
+    public void orderedQueryFromAttributeFails() {
+
+    	runner.setProperty(EqlProcessor.EQL_QUERY, "${eql}");
+    	runner.assertValid();
+
+    	reader.addRecord("George Washington", 0.9);
+
+        runner.enqueue(new byte[0], Collections.singletonMap("eql", "select * from entities limit 1"));
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(EqlRecordProcessor.REL_FAILURE, 1);
+
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+/**
+ * A limit on the number of requests to Idyl E3 at the same time that adapts to how the
+ * server is coping. Each request that succeeds within the target latency raises the limit
+ * by one over the current limit, so the limit grows by about one per limit's worth of
+ * requests. A request that fails or is slower than the target halves the limit, at most
+ * once per target latency so a burst of slow requests only counts once.
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private final int maxLimit;
+	private final long targetLatency;
+
+	// Guarded by this.
+	private double limit;
+	private int inFlight;
+	private long lastDecrease;
+
+	/**
+	 * Creates a limit that starts at its maximum.
+	 * @param maxLimit The maximum number of requests at the same time.
+	 * @param targetLatency The latency in milliseconds above which the server is taken to be overloaded.
+	 */
+	public AdaptiveConcurrencyLimit(final int maxLimit, final long targetLatency) {
+		this.maxLimit = maxLimit;
+		this.targetLatency = targetLatency;
+		this.limit = maxLimit;
+	}
+
+	/**
+	 * Waits until a request can be sent.
+	 * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+
+		inFlight++;
+
+	}
+
+	/**
+	 * Records the outcome of a request sent after {@link #acquire()}.
+	 * @param latency The time in milliseconds the request took.
+	 * @param success Whether the request succeeded.
+	 */
+	public synchronized void release(final long latency, final boolean success) {
+
+		inFlight--;
+
+		final long now = System.currentTimeMillis();
+
+		if (success && latency <= targetLatency) {
+
+			limit = Math.min(maxLimit, limit + 1 / limit);
+
+		} else if (now - lastDecrease >= targetLatency) {
+
+			limit = Math.max(1, limit / 2);
+			lastDecrease = now;
+
+		}
+
+		notifyAll();
+
+	}
+
+	/**
+	 * Releases a request sent after {@link #acquire()} without recording its outcome, for a request
+	 * that failed because of what was sent rather than how the server is coping.
+	 */
+	public synchronized void release() {
+
+		inFlight--;
+
+		notifyAll();
+
+	}
+
+	/**
+	 * Gets the current limit.
+	 * @return The number of requests that can be sent at the same time.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A document split into chunks of whole sentences that overlap so each chunk can be
+ * sent to Idyl E3 on its own, and the merging of the entities extracted from the chunks
+ * back into the entities of the document.
+ */
+public class ChunkedDocument {
+
+	private static final Set<String> TOKEN_OFFSETS = new HashSet<>(Arrays.asList("tokenStart", "tokenEnd"));
+	private static final Set<String> CHARACTER_OFFSETS = new HashSet<>(Arrays.asList("characterStart", "characterEnd"));
+
+	// Properties that can differ between the chunks an entity was found in.
+	private static final Set<String> NON_IDENTIFYING = new HashSet<>(Arrays.asList("confidence", "extractionDate"));
+
+	private final List<Chunk> chunks = new ArrayList<>();
+
+	/**
+	 * Splits a document. A sentence longer than the chunk size is a chunk by itself.
+	 * @param text The text of the document.
+	 * @param chunkSize The maximum number of characters in a chunk.
+	 * @param overlap The maximum number of characters of whole sentences at the end of a chunk repeated at the start of the next.
+	 */
+	public ChunkedDocument(final String text, final int chunkSize, final int overlap) {
+
+		final List<int[]> sentences = new ArrayList<>();
+
+		final BreakIterator iterator = BreakIterator.getSentenceInstance(Locale.ROOT);
+		iterator.setText(text);
+
+		for (int start = iterator.first(), end = iterator.next(); end != BreakIterator.DONE; start = end, end = iterator.next()) {
+			sentences.add(new int[] { start, end });
+		}
+
+		int first = 0;
+
+		while (first < sentences.size()) {
+
+			final int start = sentences.get(first)[0];
+			int last = first + 1;
+
+			while (last < sentences.size() && sentences.get(last)[1] - start <= chunkSize) {
+				last++;
+			}
+
+			final int end = sentences.get(last - 1)[1];
+
+			chunks.add(new Chunk(text.substring(start, end), start));
+
+			if (last == sentences.size()) {
+				break;
+			}
+
+			// The next chunk starts with as many of this chunk's last sentences as fit in the overlap.
+			int next = last;
+
+			while (next - 1 > first && end - sentences.get(next - 1)[0] <= overlap) {
+				next--;
+			}
+
+			first = next;
+
+		}
+
+	}
+
+	/**
+	 * Gets the text of the chunks.
+	 * @return The text of each chunk in document order.
+	 */
+	public List<String> getChunks() {
+
+		final List<String> texts = new ArrayList<>(chunks.size());
+
+		for (final Chunk chunk : chunks) {
+			texts.add(chunk.text);
+		}
+
+		return texts;
+
+	}
+
+	/**
+	 * Merges the entities extracted from the chunks. Character offsets are moved from the chunk
+	 * to the document and token offsets are removed, since the document's tokens are not known.
+	 * An entity that starts in the text shared by two chunks and is found in both of them is
+	 * kept once with its highest confidence. Without character offsets, an entity of a chunk is
+	 * taken to be one of the previous chunk when they are identical and their text is in the text
+	 * the two chunks share. All other entities are kept as they are.
+	 * @param entities The entities extracted from each chunk, in the order of {@link #getChunks()}. They are modified.
+	 * @return The entities of the document.
+	 */
+	public JsonArray merge(final List<JsonArray> entities) {
+
+		final JsonArray document = new JsonArray();
+
+		// The positions in the document of the entities that start in an overlap, keyed by their identities.
+		final Map<String, Integer> overlapping = new HashMap<>();
+
+		// The positions in the document of the previous chunk's entities without offsets whose text is in
+		// the text it shares with the current chunk, keyed by their identities.
+		Map<String, List<Integer>> shared = new HashMap<>();
+
+		for (int i = 0; i < chunks.size(); i++) {
+
+			final Map<String, List<Integer>> nextShared = new HashMap<>();
+
+			for (final JsonElement entity : entities.get(i)) {
+
+				if (!entity.isJsonObject()) {
+					document.add(entity);
+					continue;
+				}
+
+				rebase(entity.getAsJsonObject(), chunks.get(i));
+
+				final Integer start = getCharacterStart(entity.getAsJsonObject());
+
+				if (start == null) {
+					mergeWithoutOffsets(document, entity.getAsJsonObject(), i, shared, nextShared);
+					continue;
+				}
+
+				if (!isInOverlap(i, start)) {
+					document.add(entity);
+					continue;
+				}
+
+				final String identity = getIdentity(entity.getAsJsonObject());
+				final Integer existing = overlapping.get(identity);
+
+				if (existing == null) {
+					overlapping.put(identity, document.size());
+					document.add(entity);
+				} else if (getConfidence(entity) > getConfidence(document.get(existing))) {
+					document.set(existing, entity);
+				}
+
+			}
+
+			shared = nextShared;
+
+		}
+
+		return document;
+
+	}
+
+	/**
+	 * Merges an entity without character offsets. Each entity of the previous chunk is matched
+	 * at most once, so an entity repeated outside the shared text is still kept.
+	 * @param previous The previous chunk's entities that may be repeated in this chunk. Matched entities are removed.
+	 * @param next Receives this chunk's entities that may be repeated in the next chunk.
+	 */
+	private void mergeWithoutOffsets(final JsonArray document, final JsonObject entity, final int chunk,
+			final Map<String, List<Integer>> previous, final Map<String, List<Integer>> next) {
+
+		final String text = getText(entity);
+		final String identity = getIdentity(entity);
+
+		Integer position = null;
+
+		if (text != null && chunk > 0 && getSharedText(chunk, chunk - 1).contains(text)) {
+
+			final List<Integer> candidates = previous.get(identity);
+
+			if (candidates != null && !candidates.isEmpty()) {
+				position = candidates.remove(0);
+			}
+
+		}
+
+		if (position == null) {
+			position = document.size();
+			document.add(entity);
+		} else if (getConfidence(entity) > getConfidence(document.get(position))) {
+			document.set(position, entity);
+		}
+
+		if (text != null && chunk < chunks.size() - 1 && getSharedText(chunk, chunk + 1).contains(text)) {
+
+			List<Integer> candidates = next.get(identity);
+
+			if (candidates == null) {
+				candidates = new ArrayList<>();
+				next.put(identity, candidates);
+			}
+
+			candidates.add(position);
+
+		}
+
+	}
+
+	/**
+	 * Gets the text a chunk shares with another chunk.
+	 */
+	private String getSharedText(final int chunk, final int other) {
+
+		final Chunk a = chunks.get(chunk);
+		final Chunk b = chunks.get(other);
+
+		final int start = Math.max(a.characterOffset, b.characterOffset);
+		final int end = Math.min(a.getEnd(), b.getEnd());
+
+		return start >= end ? "" : a.text.substring(start - a.characterOffset, end - a.characterOffset);
+
+	}
+
+	/**
+	 * Gets whether a document offset is in the text a chunk shares with the chunk before or after it.
+	 */
+	private boolean isInOverlap(final int chunk, final int offset) {
+
+		if (chunk > 0 && offset < chunks.get(chunk - 1).getEnd()) {
+			return true;
+		}
+
+		return chunk < chunks.size() - 1 && offset >= chunks.get(chunk + 1).characterOffset;
+
+	}
+
+	private static void rebase(final JsonObject object, final Chunk chunk) {
+
+		final Iterator<Map.Entry<String, JsonElement>> properties = object.entrySet().iterator();
+
+		while (properties.hasNext()) {
+
+			final Map.Entry<String, JsonElement> property = properties.next();
+			final JsonElement value = property.getValue();
+
+			if (value.isJsonObject()) {
+
+				rebase(value.getAsJsonObject(), chunk);
+
+			} else if (TOKEN_OFFSETS.contains(property.getKey())) {
+
+				properties.remove();
+
+			} else if (CHARACTER_OFFSETS.contains(property.getKey()) && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+
+				property.setValue(new JsonPrimitive(value.getAsInt() + chunk.characterOffset));
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Gets the first character offset of an entity, which may be nested in its span.
+	 * @return The offset, or <code>null</code> if the entity has none.
+	 */
+	private static Integer getCharacterStart(final JsonObject object) {
+
+		for (final Map.Entry<String, JsonElement> property : object.entrySet()) {
+
+			final JsonElement value = property.getValue();
+
+			if (value.isJsonObject()) {
+
+				final Integer start = getCharacterStart(value.getAsJsonObject());
+
+				if (start != null) {
+					return start;
+				}
+
+			} else if (property.getKey().equals("characterStart") && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+
+				return value.getAsInt();
+
+			}
+
+		}
+
+		return null;
+
+	}
+
+	private static String getIdentity(final JsonObject entity) {
+
+		final JsonObject identity = new JsonObject();
+
+		for (final Map.Entry<String, JsonElement> property : entity.entrySet()) {
+
+			if (!NON_IDENTIFYING.contains(property.getKey())) {
+				identity.add(property.getKey(), property.getValue());
+			}
+
+		}
+
+		return identity.toString();
+
+	}
+
+	/**
+	 * Gets the text of an entity.
+	 * @return The text, or <code>null</code> if the entity has none.
+	 */
+	private static String getText(final JsonObject entity) {
+
+		final JsonElement text = entity.get("text");
+
+		if (text != null && text.isJsonPrimitive() && !text.getAsString().isEmpty()) {
+			return text.getAsString();
+		}
+
+		return null;
+
+	}
+
+	private static double getConfidence(final JsonElement entity) {
+
+		if (entity.isJsonObject()) {
+
+			final JsonElement confidence = entity.getAsJsonObject().get("confidence");
+
+			if (confidence != null && confidence.isJsonPrimitive() && confidence.getAsJsonPrimitive().isNumber()) {
+				return confidence.getAsDouble();
+			}
+
+		}
+
+		return 0;
+
+	}
+
+	private static class Chunk {
+
+		private final String text;
+		private final int characterOffset;
+
+		private Chunk(final String text, final int characterOffset) {
+			this.text = text;
+			this.characterOffset = characterOffset;
+		}
+
+		private int getEnd() {
+			return characterOffset + text.length();
+		}
+
+	}
+
+}
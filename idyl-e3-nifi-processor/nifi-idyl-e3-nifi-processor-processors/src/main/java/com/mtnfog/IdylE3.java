@@ -16,19 +16,41 @@
  */
 package com.mtnfog;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
@@ -37,18 +59,26 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.FlowFileFilters;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.mtnfog.idyl.e3.sdk.IdylE3Client;
 import com.mtnfog.idyl.e3.sdk.IdylE3ClientFactory;
 import com.mtnfog.idyl.e3.sdk.model.AuthenticationMethod;
@@ -59,12 +89,14 @@ import com.mtnfog.idyl.e3.sdk.model.EntityExtractionResponse;
 @SeeAlso({})
 @ReadsAttributes({ @ReadsAttribute(attribute = "", description = "") })
 @WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
-public class IdylE3 extends AbstractProcessor {
+public class IdylE3 extends AbstractSessionFactoryProcessor {
 
 	public static final PropertyDescriptor IDYL_E3_HOST = new PropertyDescriptor.Builder()
 			.name("Endpoint")
 			.defaultValue("http://localhost:9000")
-			.description("The Idyl E3 IP or host name endpoint such as http://localhost:9000.")
+			.description("The Idyl E3 IP or host name endpoint such as http://localhost:9000. Multiple endpoints can be separated "
+					+ "by commas, in which case each request goes to the endpoint with the fewest outstanding requests and "
+					+ "a failed request is retried on another endpoint.")
 			.required(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
 			.build();
@@ -126,33 +158,263 @@ public class IdylE3 extends AbstractProcessor {
 			.expressionLanguageSupported(true)
 			.build();	
 	
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Batch Size")
+			.defaultValue("1")
+			.description("The maximum number of FlowFiles to process in a single execution.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Batch Data Size")
+			.defaultValue("1 MB")
+			.description("The maximum combined content size of the FlowFiles processed in a single execution. "
+					+ "At least one FlowFile is always processed, even if it is larger than this value.")
+			.required(true)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor CONCURRENT_REQUESTS = new PropertyDescriptor.Builder()
+			.name("Concurrent Requests")
+			.defaultValue("1")
+			.description("The number of requests for a batch of FlowFiles sent to Idyl E3 at the same time. The asynchronous "
+					+ "processor sends up to Max In-Flight Requests at the same time instead.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_IN_FLIGHT_REQUESTS = new PropertyDescriptor.Builder()
+			.name("Max In-Flight Requests")
+			.defaultValue("100")
+			.description("The maximum number of FlowFiles waiting for a response, which is also the "
+					+ "number of requests sent to Idyl E3 at the same time. No more FlowFiles are taken from the queue until "
+					+ "some of the responses have arrived.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RESPONSE_CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("Response Cache Size")
+			.defaultValue("0")
+			.description("The maximum number of extract, annotate and sanitize responses kept in memory so identical requests "
+					+ "are answered without calling Idyl E3. A value of 0 disables the in-memory cache.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RESPONSE_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+			.name("Response Cache Expiration")
+			.defaultValue("1 hour")
+			.description("How long a cached response is used before the request is sent to Idyl E3 again.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor RESPONSE_CACHE_DIRECTORY = new PropertyDescriptor.Builder()
+			.name("Response Cache Directory")
+			.description("A directory where cached responses are also stored so they are kept when the processor is restarted. "
+					+ "Responses in the directory are removed once they expire. Only files named like a cached response, a "
+					+ "64 character SHA-256 hash, are ever removed so the directory can hold other files.")
+			.required(false)
+			.addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+			.build();
+	
+	public static final PropertyDescriptor RESPONSE_CACHE_DIRECTORY_SIZE = new PropertyDescriptor.Builder()
+			.name("Response Cache Directory Size")
+			.defaultValue("1 GB")
+			.description("The maximum total size of the responses stored in the Response Cache Directory. The least recently "
+					+ "used responses are removed once the responses grow beyond it.")
+			.required(true)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RESPONSE_ATTRIBUTE_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Response Attribute Size")
+			.defaultValue("64 KB")
+			.description("The largest response that is also written to the idyl-e3-response attribute. Larger responses "
+					+ "are only written to the content. A value of 0 B never writes the attribute.")
+			.required(true)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor CHUNK_SIZE = new PropertyDescriptor.Builder()
+			.name("Chunk Size")
+			.defaultValue("0")
+			.description("The maximum number of characters sent in one extract request. Longer documents are split into chunks "
+					+ "of whole sentences that are sent concurrently, and the entities of the chunks are merged with their character "
+					+ "offsets relative to the whole document. Token offsets are removed from the merged entities because they "
+					+ "can't be moved to the whole document. A value of 0 always sends the whole document.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor CHUNK_OVERLAP = new PropertyDescriptor.Builder()
+			.name("Chunk Overlap")
+			.defaultValue("200")
+			.description("The maximum number of characters of whole sentences at the end of a chunk that are repeated at the "
+					+ "start of the next chunk, so entities near the end of a chunk are found with their full context. "
+					+ "An entity found at the same character offsets in the repeated text of both chunks is only included once. "
+					+ "Without character offsets, an entity of the next chunk is only included once when its text is in the repeated "
+					+ "text and the previous chunk found an identical entity there.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor ENDPOINT_FAILURE_THRESHOLD = new PropertyDescriptor.Builder()
+			.name("Endpoint Failure Threshold")
+			.defaultValue("3")
+			.description("The number of requests in a row an endpoint can fail with an I/O error or a timeout before no more "
+					+ "requests are sent to it. Errors caused by the document, such as a rejected request, are not counted.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor ENDPOINT_RECOVERY_TIME = new PropertyDescriptor.Builder()
+			.name("Endpoint Recovery Time")
+			.defaultValue("30 sec")
+			.description("How long an endpoint that reached the failure threshold is not used. A single request is then "
+					+ "sent to it and it is used again if that request succeeds.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RETRIES = new PropertyDescriptor.Builder()
+			.name("Max Retries")
+			.defaultValue("3")
+			.description("The number of times a FlowFile whose request failed is routed to retry before it is routed to failure. "
+					+ "FlowFiles are only routed to retry when the retry relationship is connected and their request failed because "
+					+ "of an I/O error, a timeout or none of the endpoints being available. Any other failure, such as Idyl E3 "
+					+ "rejecting the document, is routed straight to failure.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor INITIAL_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+			.name("Initial Retry Backoff")
+			.defaultValue("1 sec")
+			.description("How long a FlowFile routed to retry waits before its request is sent again. The wait doubles with each retry. "
+					+ "A waiting FlowFile is penalized for the processor's Penalty Duration each time it comes back early, so the wait "
+					+ "is rounded up to a multiple of the Penalty Duration (30 sec by default) and the FlowFile passes through the "
+					+ "processor once per Penalty Duration while it waits. Set the Penalty Duration no longer than this value for the "
+					+ "wait to be followed closely.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+			.name("Max Retry Backoff")
+			.defaultValue("5 min")
+			.description("The longest a FlowFile routed to retry waits before its request is sent again. Like the Initial Retry "
+					+ "Backoff, the wait is rounded up to a multiple of the processor's Penalty Duration.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor ADAPTIVE_CONCURRENCY = new PropertyDescriptor.Builder()
+			.name("Adaptive Concurrency")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.description("When true, the number of requests sent at the same time, up to Concurrent Requests or Max In-Flight Requests "
+					+ "for the asynchronous processor, is halved when a request fails with an I/O error or a timeout or takes longer "
+					+ "than the Target Latency, and slowly raised again while requests succeed within it. Requests Idyl E3 rejects "
+					+ "leave the number as it is.")
+			.required(true)
+			.addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+			.build();
+	
+	public static final PropertyDescriptor TARGET_LATENCY = new PropertyDescriptor.Builder()
+			.name("Target Latency")
+			.defaultValue("2 sec")
+			.description("The request latency above which Idyl E3 is taken to be overloaded when Adaptive Concurrency is true.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+	
 	public static final Relationship REL_SUCCESS = new Relationship.Builder()
 			.name("success").description("success").build();
 
 	public static final Relationship REL_FAILURE = new Relationship.Builder()
 			.name("failure").description("failure").build();
+	
+	public static final Relationship REL_RETRY = new Relationship.Builder()
+			.name("retry")
+			.description("FlowFiles whose request failed and will be sent again once their backoff has passed. "
+					+ "When this relationship is not connected they are routed to failure.")
+			.build();
+	
+	private static final String RETRY_COUNT_ATTRIBUTE = "idyl-e3.retry.count";
+	private static final String RETRY_AFTER_ATTRIBUTE = "idyl-e3.retry.after";
 
 	private List<PropertyDescriptor> descriptors;
 	private Set<Relationship> relationships;
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// The largest array most JVMs can allocate.
+	private static final int MAX_CONTENT_SIZE = Integer.MAX_VALUE - 8;
+	
 	private Gson gson;
 	
+	// The clients are shared by all FlowFiles and only rebuilt when the endpoints or API key change.
+	private volatile Map<String, IdylE3Client> clients;
+	private volatile IdylE3Endpoints endpoints;
+	private volatile String clientHost;
+	private volatile String clientApiKey;
+	private volatile ExecutorService executor;
+	private volatile ResponseCache responseCache;
+	private volatile long maxResponseAttributeSize;
+	private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+	private volatile int chunkSize;
+	private volatile int chunkOverlap;
+	
+	// Chunks have their own pool because the requests waiting for them may be running in the other one.
+	private volatile ExecutorService chunkExecutor;
+	
+	// The asynchronous batches still waiting for responses and those ready to be transferred.
+	private final Set<AsyncBatch> pendingBatches = Collections.newSetFromMap(new ConcurrentHashMap<AsyncBatch, Boolean>());
+	private final Queue<AsyncBatch> completedBatches = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		
 		descriptors = new ArrayList<PropertyDescriptor>();
 		descriptors.add(IDYL_E3_HOST);
+		descriptors.add(ENDPOINT_FAILURE_THRESHOLD);
+		descriptors.add(ENDPOINT_RECOVERY_TIME);
 		descriptors.add(IDYL_E3_API_KEY);
 		descriptors.add(IDYL_E3_ACTION);
 		descriptors.add(IDYL_E3_CONTEXT);
 		descriptors.add(IDYL_E3_DOCUMENT_ID);
 		descriptors.add(IDYL_E3_LANGUAGE);
 		descriptors.add(IDYL_E3_TYPE);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(MAX_BATCH_SIZE);
+		descriptors.add(CONCURRENT_REQUESTS);
+		
+		if (isAsynchronous()) {
+			descriptors.add(MAX_IN_FLIGHT_REQUESTS);
+		}
+		
+		descriptors.add(RESPONSE_CACHE_SIZE);
+		descriptors.add(RESPONSE_CACHE_EXPIRATION);
+		descriptors.add(RESPONSE_CACHE_DIRECTORY);
+		descriptors.add(RESPONSE_CACHE_DIRECTORY_SIZE);
+		descriptors.add(MAX_RESPONSE_ATTRIBUTE_SIZE);
+		descriptors.add(CHUNK_SIZE);
+		descriptors.add(CHUNK_OVERLAP);
+		descriptors.add(MAX_RETRIES);
+		descriptors.add(INITIAL_RETRY_BACKOFF);
+		descriptors.add(MAX_RETRY_BACKOFF);
+		descriptors.add(ADAPTIVE_CONCURRENCY);
+		descriptors.add(TARGET_LATENCY);
 		descriptors = Collections.unmodifiableList(descriptors);
 
 		relationships = new HashSet<Relationship>();
 		relationships.add(REL_SUCCESS);
 		relationships.add(REL_FAILURE);
+		relationships.add(REL_RETRY);
 		relationships = Collections.unmodifiableSet(relationships);		
 		
 		gson = new Gson();
@@ -169,23 +431,505 @@ public class IdylE3 extends AbstractProcessor {
 		return descriptors;
 	}
 
+	/**
+	 * Whether requests are sent without waiting for their responses, in which case the
+	 * FlowFiles are transferred by a later execution once the responses arrive.
+	 * @return <code>true</code> for {@link IdylE3Async}.
+	 */
+	protected boolean isAsynchronous() {
+		return false;
+	}
+
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
 
+		final String host = context.getProperty(IDYL_E3_HOST).getValue();
+		final String apiKey = context.getProperty(IDYL_E3_API_KEY).getValue();
+		
+		if (clients == null || !StringUtils.equals(host, clientHost) || !StringUtils.equals(apiKey, clientApiKey)) {
+			
+			final Map<String, IdylE3Client> newClients = new LinkedHashMap<>();
+			
+			for (final String endpoint : host.split(",")) {
+				
+				if (StringUtils.isNotBlank(endpoint) && !newClients.containsKey(endpoint.trim())) {
+					newClients.put(endpoint.trim(), createClient(endpoint.trim(), apiKey));
+				}
+				
+			}
+			
+			clients = newClients;
+			clientHost = host;
+			clientApiKey = apiKey;
+			
+		}
+		
+		// The health of the endpoints starts over each time the processor is scheduled.
+		endpoints = new IdylE3Endpoints(clients, context.getProperty(ENDPOINT_FAILURE_THRESHOLD).asInteger(),
+				context.getProperty(ENDPOINT_RECOVERY_TIME).asTimePeriod(TimeUnit.MILLISECONDS));
+		
+		final int concurrentRequests = context.getProperty(CONCURRENT_REQUESTS).asInteger();
+		
+		// Each in-flight request needs its own thread or the pool serializes the requests the asynchronous processor is pipelining.
+		final int requestThreads = isAsynchronous() ? context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger() : concurrentRequests;
+		
+		if (isAsynchronous() || requestThreads > 1) {
+			executor = Executors.newFixedThreadPool(requestThreads);
+		}
+		
+		maxResponseAttributeSize = context.getProperty(MAX_RESPONSE_ATTRIBUTE_SIZE).asDataSize(DataUnit.B).longValue();
+		if (context.getProperty(ADAPTIVE_CONCURRENCY).asBoolean()) {
+			concurrencyLimit = new AdaptiveConcurrencyLimit(requestThreads, context.getProperty(TARGET_LATENCY).asTimePeriod(TimeUnit.MILLISECONDS));
+		} else {
+			concurrencyLimit = null;
+		}
+		
+		chunkSize = context.getProperty(CHUNK_SIZE).asInteger();
+		chunkOverlap = context.getProperty(CHUNK_OVERLAP).asInteger();
+		
+		if (chunkSize > 0) {
+			chunkExecutor = Executors.newFixedThreadPool(requestThreads);
+		}
+		
+		final int cacheSize = context.getProperty(RESPONSE_CACHE_SIZE).asInteger();
+		final String cacheDirectory = context.getProperty(RESPONSE_CACHE_DIRECTORY).getValue();
+		
+		if (cacheSize > 0 || cacheDirectory != null) {
+			
+			final long expiration = context.getProperty(RESPONSE_CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS);
+			
+			final long directorySize = context.getProperty(RESPONSE_CACHE_DIRECTORY_SIZE).asDataSize(DataUnit.B).longValue();
+			
+			responseCache = new ResponseCache(cacheSize, expiration, cacheDirectory == null ? null : new File(cacheDirectory),
+					directorySize, getLogger());
+			
+		} else {
+			
+			responseCache = null;
+			
+		}
+		
+		// A request abandoned by the last stop may have completed after its batch was rolled back.
+		completedBatches.clear();
+		
+	}
+	
+	@OnStopped
+	public void onStopped() {
+		
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		
+		if (chunkExecutor != null) {
+			chunkExecutor.shutdownNow();
+			chunkExecutor = null;
+		}
+		
+		// FlowFiles still waiting for responses go back to the queue.
+		for (final AsyncBatch batch : pendingBatches) {
+			batch.session.rollback();
+		}
+		
+		pendingBatches.clear();
+		completedBatches.clear();
+		inFlight.set(0);
+		
+	}
+	
+	/**
+	 * Creates the client used to call Idyl E3.
+	 * @param host The Idyl E3 endpoint.
+	 * @param apiKey The API key, or <code>null</code> if none is required.
+	 * @return An {@link IdylE3Client}.
+	 */
+	protected IdylE3Client createClient(final String host, final String apiKey) {
+		
+		if(StringUtils.isEmpty(apiKey)) {
+			return IdylE3ClientFactory.getIdylE3Client(host);
+		} else {
+			return IdylE3ClientFactory.getIdylE3Client(host, apiKey, AuthenticationMethod.PLAIN);
+		}
+		
 	}
 
 	@Override
-	public void onTrigger(final ProcessContext ctx,	final ProcessSession session) throws ProcessException {
+	public void onTrigger(final ProcessContext ctx, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		
+		if (!isAsynchronous()) {
+			
+			final ProcessSession session = sessionFactory.createSession();
+			
+			try {
+				processBatch(ctx, session);
+				session.commit();
+			} catch (final Throwable t) {
+				session.rollback(true);
+				throw t;
+			}
+			
+			return;
+			
+		}
+		
+		final boolean transferred = transferCompletedBatches(ctx);
+		final boolean sent = sendBatch(ctx, sessionFactory);
+		
+		// Back off when there was nothing to send and none of the requests in flight has finished.
+		if (!transferred && !sent) {
+			ctx.yield();
+		}
+		
+	}
+	
+	private void processBatch(final ProcessContext ctx, final ProcessSession session) throws ProcessException {
 		
-		FlowFile flowFile = session.get();
+		final int batchSize = ctx.getProperty(BATCH_SIZE).asInteger();
+		final double maxBatchSize = ctx.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
 		
-		if (flowFile == null) {
+		final List<FlowFile> flowFiles = deferRetries(ctx, session, session.get(FlowFileFilters.newSizeBasedFilter(maxBatchSize, DataUnit.B, batchSize)));
+		
+		if (flowFiles.isEmpty()) {
 			return;
 		}
 		
 		final String host = ctx.getProperty(IDYL_E3_HOST).getValue();
-		final String action = ctx.getProperty(IDYL_E3_ACTION).getValue();
-		final String apiKey = ctx.getProperty(IDYL_E3_API_KEY).getValue();
+		final ExecutorService executor = this.executor;
+		
+		// The session is not thread safe so the content is read and written on this thread and only the requests are concurrent.
+		final List<Request> requests = new ArrayList<>();
+		final List<Future<Object>> responses = new ArrayList<>();
+		
+		for (final FlowFile flowFile : flowFiles) {
+			
+			final Request request = createRequest(ctx, session, flowFile);
+			
+			requests.add(request);
+			
+			if (executor != null) {
+				responses.add(executor.submit(request));
+			}
+			
+		}
+		
+		for (int i = 0; i < flowFiles.size(); i++) {
+			
+			FlowFile flowFile = flowFiles.get(i);
+			
+			try {
+				
+				final Object response;
+				
+				if (executor == null) {
+					response = requests.get(i).call();
+				} else {
+					response = getResponse(responses.get(i));
+				}
+				
+				transferResponse(session, flowFile, response);
+				
+			} catch (Exception ex) {
+				
+				transferFailure(ctx, session, flowFile, host, ex);
+				
+			}
+			
+		}
+
+	}
+	
+	/**
+	 * Reads a batch of FlowFiles in a new session and sends their requests without waiting
+	 * for the responses. The session stays open until every response in the batch has arrived.
+	 * @return <code>true</code> if any FlowFiles were sent.
+	 */
+	private boolean sendBatch(final ProcessContext ctx, final ProcessSessionFactory sessionFactory) {
+		
+		final int capacity = ctx.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger() - inFlight.get();
+		
+		if (capacity <= 0) {
+			return false;
+		}
+		
+		final int batchSize = Math.min(ctx.getProperty(BATCH_SIZE).asInteger(), capacity);
+		final double maxBatchSize = ctx.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
+		
+		final ProcessSession session = sessionFactory.createSession();
+		final List<FlowFile> flowFiles;
+		final List<CompletableFuture<Object>> responses = new ArrayList<>();
+		
+		try {
+		
+			final List<FlowFile> polled = session.get(FlowFileFilters.newSizeBasedFilter(maxBatchSize, DataUnit.B, batchSize));
+			
+			if (polled.isEmpty()) {
+				session.commit();
+				return false;
+			}
+			
+			flowFiles = deferRetries(ctx, session, polled);
+			
+			if (flowFiles.isEmpty()) {
+				session.commit();
+				return true;
+			}
+			
+			for (final FlowFile flowFile : flowFiles) {
+				responses.add(CompletableFuture.supplyAsync(createRequest(ctx, session, flowFile), executor));
+			}
+		
+		} catch (final Throwable t) {
+			
+			session.rollback(true);
+			throw t;
+			
+		}
+		
+		final AsyncBatch batch = new AsyncBatch(session, flowFiles, responses);
+		
+		inFlight.addAndGet(flowFiles.size());
+		pendingBatches.add(batch);
+		
+		CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+			
+			@Override
+			public void accept(Void result, Throwable t) {
+				completedBatches.add(batch);
+			}
+			
+		});
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Transfers the FlowFiles of the batches whose responses have all arrived.
+	 * @return <code>true</code> if any FlowFiles were transferred.
+	 */
+	private boolean transferCompletedBatches(final ProcessContext ctx) {
+		
+		final String host = ctx.getProperty(IDYL_E3_HOST).getValue();
+		
+		boolean transferred = false;
+		AsyncBatch batch;
+		
+		while ((batch = completedBatches.poll()) != null) {
+			
+			pendingBatches.remove(batch);
+			
+			for (int i = 0; i < batch.flowFiles.size(); i++) {
+				
+				final FlowFile flowFile = batch.flowFiles.get(i);
+				
+				try {
+					
+					transferResponse(batch.session, flowFile, getResponse(batch.responses.get(i)));
+					
+				} catch (Exception ex) {
+					
+					transferFailure(ctx, batch.session, flowFile, host, ex);
+					
+				}
+				
+			}
+			
+			batch.session.commit();
+			inFlight.addAndGet(-batch.flowFiles.size());
+			transferred = true;
+			
+		}
+		
+		return transferred;
+		
+	}
+	
+	private void transferResponse(final ProcessSession session, FlowFile flowFile, final Object response) {
+		
+		final long maxResponseAttributeSize = this.maxResponseAttributeSize;
+		
+		// A serialized response is copied as it is written so the attribute doesn't have to read the content back.
+		final LimitedCopy copy = maxResponseAttributeSize > 0 && response != null && !(response instanceof String)
+				? new LimitedCopy(maxResponseAttributeSize) : null;
+		
+		flowFile = session.write(flowFile, new OutputStreamCallback() {
+			
+			@Override
+			public void process(OutputStream outputStream) throws IOException {
+				
+				// There's no response to an ingest.
+				if (response != null) {
+					
+					final Writer writer = new BufferedWriter(new OutputStreamWriter(copy == null ? outputStream : new TeeOutputStream(outputStream, copy), UTF8));
+					
+					// Extracted entities are serialized straight into the content.
+					if (response instanceof String) {
+						writer.write((String) response);
+					} else {
+						gson.toJson(response, writer);
+					}
+					
+					writer.flush();
+					
+				}
+				
+			}
+			
+		});
+		
+		flowFile = session.removeAttribute(flowFile, RETRY_COUNT_ATTRIBUTE);
+		flowFile = session.removeAttribute(flowFile, RETRY_AFTER_ATTRIBUTE);
+		
+		// Large responses are only written to the content so they don't bloat the FlowFile repository.
+		if (response != null && maxResponseAttributeSize > 0 && flowFile.getSize() <= maxResponseAttributeSize) {
+			
+			final String value;
+			
+			if (response instanceof String) {
+				value = (String) response;
+			} else {
+				value = copy.toString(UTF8);
+			}
+			
+			flowFile = session.putAttribute(flowFile, "idyl-e3-response", value);
+			
+		}
+
+		session.transfer(flowFile, REL_SUCCESS);
+		
+	}
+	
+	/**
+	 * Routes a FlowFile whose request failed because of the endpoints to retry, penalized and with a backoff
+	 * that doubles with each retry, or to failure once its retries are used up or when retry is not connected.
+	 * A FlowFile whose request failed for any other reason would fail the same way again so it goes to failure.
+	 */
+	private void transferFailure(final ProcessContext ctx, final ProcessSession session, FlowFile flowFile, final String host, final Exception ex) {
+		
+		final int retries = NumberUtils.toInt(flowFile.getAttribute(RETRY_COUNT_ATTRIBUTE), 0);
+		
+		if (IdylE3Endpoints.isEndpointFailure(ex) && ctx.hasConnection(REL_RETRY) && retries < ctx.getProperty(MAX_RETRIES).asInteger()) {
+			
+			final long initialBackoff = ctx.getProperty(INITIAL_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS);
+			final long maxBackoff = ctx.getProperty(MAX_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS);
+			final long backoff = (long) Math.min(maxBackoff, initialBackoff * Math.pow(2, retries));
+			
+			getLogger().warn(String.format("Unable to extract entities using Idyl E3 at: %s. Retrying in %d ms. Exception: %s", host, backoff, ex.getMessage()), ex);
+			
+			flowFile = session.putAttribute(flowFile, RETRY_COUNT_ATTRIBUTE, String.valueOf(retries + 1));
+			flowFile = session.putAttribute(flowFile, RETRY_AFTER_ATTRIBUTE, String.valueOf(System.currentTimeMillis() + backoff));
+			
+			session.transfer(session.penalize(flowFile), REL_RETRY);
+			
+		} else {
+			
+			getLogger().error(String.format("Unable to extract entities using Idyl E3 at: %s. Exception: %s", host, ex.getMessage()), ex);
+			session.transfer(flowFile, REL_FAILURE);
+			
+		}
+		
+	}
+	
+	/**
+	 * Sends the FlowFiles whose retry backoff has not passed back to retry. A FlowFile is only penalized
+	 * for the processor's penalty duration so it can come back before its backoff is over.
+	 * @return The FlowFiles whose requests can be sent.
+	 */
+	private List<FlowFile> deferRetries(final ProcessContext ctx, final ProcessSession session, final List<FlowFile> flowFiles) {
+		
+		if (!ctx.hasConnection(REL_RETRY)) {
+			return flowFiles;
+		}
+		
+		final long now = System.currentTimeMillis();
+		final List<FlowFile> ready = new ArrayList<>(flowFiles.size());
+		
+		for (final FlowFile flowFile : flowFiles) {
+			
+			if (NumberUtils.toLong(flowFile.getAttribute(RETRY_AFTER_ATTRIBUTE), 0) > now) {
+				session.transfer(session.penalize(flowFile), REL_RETRY);
+			} else {
+				ready.add(flowFile);
+			}
+			
+		}
+		
+		return ready;
+		
+	}
+	
+	/**
+	 * Sends a call to the endpoints within the adaptive concurrency limit, if there is one. Only
+	 * failures of the endpoints lower the limit since a rejected document says nothing about load.
+	 */
+	private <T> T execute(final IdylE3Endpoints endpoints, final IdylE3Endpoints.Call<T> call) throws Exception {
+		
+		final AdaptiveConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+		
+		if (concurrencyLimit == null) {
+			return endpoints.execute(call);
+		}
+		
+		concurrencyLimit.acquire();
+		
+		final long start = System.currentTimeMillis();
+		boolean success = false;
+		boolean endpointFailure = false;
+		
+		try {
+			
+			final T result = endpoints.execute(call);
+			success = true;
+			
+			return result;
+			
+		} catch (Exception ex) {
+			
+			endpointFailure = IdylE3Endpoints.isEndpointFailure(ex);
+			throw ex;
+			
+		} finally {
+			
+			if (success || endpointFailure) {
+				concurrencyLimit.release(System.currentTimeMillis() - start, success);
+			} else {
+				concurrencyLimit.release();
+			}
+			
+		}
+		
+	}
+	
+	private String readContent(final ProcessSession session, final FlowFile flowFile) {
+		
+		final AtomicReference<String> content = new AtomicReference<>();
+		
+		session.read(flowFile, new InputStreamCallback() {
+			
+			@Override
+			public void process(InputStream inputStream) throws IOException {
+				
+				// The whole content is sent as a single string, which can't be larger than an array.
+				if (flowFile.getSize() > MAX_CONTENT_SIZE) {
+					throw new IOException(String.format("The content of %d bytes is larger than the %d bytes that can be sent to Idyl E3.", flowFile.getSize(), MAX_CONTENT_SIZE));
+				}
+				
+				// The content is read into a buffer of its exact size rather than a growing one.
+				final byte[] buffer = new byte[(int) flowFile.getSize()];
+				StreamUtils.fillBuffer(inputStream, buffer);
+				
+				content.set(new String(buffer, UTF8));
+				
+			}
+			
+		});
+		
+		return content.get();
+		
+	}
+	
+	private Request createRequest(final ProcessContext ctx, final ProcessSession session, final FlowFile flowFile) {
 		
 		final int confidence;
 		if(ctx.getProperty(IDYL_E3_CONFIDENCE).asInteger() != null) {
@@ -198,70 +942,253 @@ public class IdylE3 extends AbstractProcessor {
 		final String documentId = ctx.getProperty(IDYL_E3_DOCUMENT_ID).evaluateAttributeExpressions(flowFile).getValue();
 		final String language = ctx.getProperty(IDYL_E3_LANGUAGE).evaluateAttributeExpressions(flowFile).getValue();
 		final String type = ctx.getProperty(IDYL_E3_TYPE).evaluateAttributeExpressions(flowFile).getValue();
-				
-		final AtomicReference<String> value = new AtomicReference<>();
+		
+		return new Request(endpoints, responseCache, ctx.getProperty(IDYL_E3_ACTION).getValue(), readContent(session, flowFile),
+				confidence, context, documentId, language, type);
+		
+	}
+	
+	private Object getResponse(final Future<Object> response) throws Exception {
 		
 		try {
-						
-			IdylE3Client idylE3Client;
 			
-			if(StringUtils.isEmpty(apiKey)) {
-				idylE3Client = IdylE3ClientFactory.getIdylE3Client(host);
-			} else {
-				idylE3Client = IdylE3ClientFactory.getIdylE3Client(host, apiKey, AuthenticationMethod.PLAIN);
+			return response.get();
+			
+		} catch (ExecutionException ex) {
+			
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception) ex.getCause();
 			}
 			
-			flowFile = session.write(flowFile, new StreamCallback() {
+			throw ex;
+			
+		}
+		
+	}
+	
+	/**
+	 * Keeps a copy of the bytes written to it until more than a limit have been written,
+	 * after which it keeps nothing.
+	 */
+	private static class LimitedCopy extends OutputStream {
+		
+		private final long limit;
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		private LimitedCopy(final long limit) {
+			this.limit = limit;
+		}
+		
+		@Override
+		public void write(final int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			
+			if (bytes != null) {
+				
+				if (bytes.size() + (long) len > limit) {
+					bytes = null;
+				} else {
+					bytes.write(b, off, len);
+				}
+				
+			}
+			
+		}
+		
+		/**
+		 * Gets the bytes written as a string.
+		 * @return The string, or <code>null</code> if more than the limit were written.
+		 */
+		private String toString(final Charset charset) {
+			return bytes == null ? null : new String(bytes.toByteArray(), charset);
+		}
+		
+	}
+	
+	/**
+	 * A batch of FlowFiles whose requests were sent asynchronously, held in the
+	 * session they were taken from until all of the responses arrive.
+	 */
+	private static class AsyncBatch {
+		
+		private final ProcessSession session;
+		private final List<FlowFile> flowFiles;
+		private final List<CompletableFuture<Object>> responses;
+		
+		private AsyncBatch(final ProcessSession session, final List<FlowFile> flowFiles, final List<CompletableFuture<Object>> responses) {
+			this.session = session;
+			this.flowFiles = flowFiles;
+			this.responses = responses;
+		}
+		
+	}
+	
+	/**
+	 * A request to Idyl E3 for the content of one FlowFile.
+	 */
+	private class Request implements Callable<Object>, Supplier<Object> {
+		
+		private final IdylE3Endpoints endpoints;
+		private final ResponseCache responseCache;
+		private final String action;
+		private final String input;
+		private final int confidence;
+		private final String context;
+		private final String documentId;
+		private final String language;
+		private final String type;
+		
+		private Request(final IdylE3Endpoints endpoints, final ResponseCache responseCache, final String action, final String input,
+				final int confidence, final String context, final String documentId, final String language, final String type) {
+			this.endpoints = endpoints;
+			this.responseCache = responseCache;
+			this.action = action;
+			this.input = input;
+			this.confidence = confidence;
+			this.context = context;
+			this.documentId = documentId;
+			this.language = language;
+			this.type = type;
+		}
+		
+		/**
+		 * Sends the request, or gets its response from the cache.
+		 * @return The response text, the extracted entities when they don't need to be cached, or <code>null</code> for an ingest.
+		 */
+		@Override
+		public Object call() throws Exception {
+			
+			// An ingest stores the text so it is always sent.
+			if (responseCache == null || StringUtils.equals(action, "ingest")) {
+				return send(false);
+			}
+			
+			final boolean extract = StringUtils.equals(action, "extract");
+			final boolean chunked = extract && chunkSize > 0 && input.length() > chunkSize;
+			
+			// The entities of an extraction carry the document ID, and those of a chunked document depend on how it was split.
+			final String key = ResponseCache.getKey(input, action, String.valueOf(confidence), language, type, context,
+					extract ? documentId : null, chunked ? String.valueOf(chunkSize) : null, chunked ? String.valueOf(chunkOverlap) : null);
+			
+			String response = responseCache.get(key);
+			
+			if (response == null) {
+				
+				response = (String) send(true);
+				
+				if (response != null) {
+					responseCache.put(key, response);
+				}
+				
+			}
+			
+			return response;
+			
+		}
+		
+		private Object send(final boolean serialize) throws Exception {
+			
+			if (StringUtils.equals(action, "extract") && chunkSize > 0 && input.length() > chunkSize) {
+				
+				final JsonArray entities = extractChunks();
+				
+				return serialize ? gson.toJson(entities) : entities;
+				
+			}
+			
+			return execute(endpoints, new IdylE3Endpoints.Call<Object>() {
 				
 				@Override
-				public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
-					
-					String input = IOUtils.toString(inputStream, Charset.forName("UTF-8"));
-					
-					if(StringUtils.equals(action, "extract")) {
+				public Object call(IdylE3Client client) throws Exception {
+					return send(client, serialize);
+				}
+				
+			});
+			
+		}
+		
+		private Object send(final IdylE3Client idylE3Client, final boolean serialize) throws Exception {
+			
+			if(StringUtils.equals(action, "extract")) {
+				
+				EntityExtractionResponse response = idylE3Client.extract(input, confidence, context, documentId, language, type);
+				
+				if (serialize) {
+					return gson.toJson(response.getEntities());
+				}
+				
+				return response.getEntities();
+				
+			} else if(StringUtils.equals(action, "annotate")) {
+				
+				return idylE3Client.annotate(input, confidence, language, "opennlp", type);
+				
+			} else if(StringUtils.equals(action, "ingest")) {
+				
+				idylE3Client.ingest(input, confidence, context, documentId, language, type);
+				
+			} else if(StringUtils.equals(action, "sanitize")) {
+				
+				return idylE3Client.sanitize(input, confidence, language, type);
+				
+			}
+			
+			return null;
+			
+		}
+		
+		private JsonArray extractChunks() throws Exception {
+			
+			final ChunkedDocument document = new ChunkedDocument(input, chunkSize, chunkOverlap);
+			final List<Future<Object>> responses = new ArrayList<>();
+			
+			for (final String chunk : document.getChunks()) {
+				
+				responses.add(chunkExecutor.submit(new Callable<Object>() {
 					
-						EntityExtractionResponse response = idylE3Client.extract(input, confidence, context, documentId, language, type);
-						
-						final String json = gson.toJson(response.getEntities());
-						value.set(json);
-						IOUtils.write(json, outputStream, Charset.forName("UTF-8"));
-						
-					} else if(StringUtils.equals(action, "annotate")) {
-						
-						final String annotated = idylE3Client.annotate(input, confidence, language, "opennlp", type);
-						
-						value.set(annotated);
-						IOUtils.write(annotated, outputStream, Charset.forName("UTF-8"));
-						
-					} else if(StringUtils.equals(action, "ingest")) {
-						
-						// There's no response to an ingest.
-						idylE3Client.ingest(input, confidence, context, documentId, language, type);
+					@Override
+					public Object call() throws Exception {
 						
-					} else if(StringUtils.equals(action, "sanitize")) {
-						
-						final String sanitized = idylE3Client.sanitize(input, confidence, language, type);
-								
-						value.set(sanitized);
-						IOUtils.write(sanitized, outputStream, Charset.forName("UTF-8"));
+						return execute(endpoints, new IdylE3Endpoints.Call<Object>() {
+							
+							@Override
+							public Object call(IdylE3Client client) throws Exception {
+								return gson.toJsonTree(client.extract(chunk, confidence, context, documentId, language, type).getEntities());
+							}
+							
+						});
 						
 					}
-	
-				}
+					
+				}));
 				
-			});
+			}
 			
-	        flowFile = session.putAttribute(flowFile, "idyl-e3-response", value.get());
-	
-			session.transfer(flowFile, REL_SUCCESS);
+			final List<JsonArray> entities = new ArrayList<>();
 			
-		} catch (Exception ex) {
+			for (final Future<Object> response : responses) {
+				entities.add(((JsonElement) getResponse(response)).getAsJsonArray());
+			}
 			
-			getLogger().error(String.format("Unable to extract entities using Idyl E3 at: %s. Exception: %s", host, ex.getMessage()), ex);
-			session.transfer(flowFile, REL_FAILURE);
+			return document.merge(entities);
 			
 		}
-
+		
+		@Override
+		public Object get() {
+			
+			try {
+				return call();
+			} catch (Exception ex) {
+				throw new CompletionException(ex);
+			}
+			
+		}
+		
 	}
 	
 }
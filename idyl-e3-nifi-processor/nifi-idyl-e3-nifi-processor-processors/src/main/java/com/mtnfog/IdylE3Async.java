@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+
+/**
+ * Sends requests to Idyl E3 without waiting for their responses. The processor is
+ * triggered even when its queue is empty so it can transfer the FlowFiles whose
+ * responses have arrived, and it yields when there is nothing to do.
+ */
+@Tags({ "nlp, entities, extraction, asynchronous" })
+@CapabilityDescription("Provides entity extraction through Idyl E3. Requests are sent without waiting for their responses and the "
+		+ "FlowFiles are transferred by a later execution once the responses arrive, so one task can keep many requests in flight.")
+@SeeAlso({ IdylE3.class })
+@ReadsAttributes({ @ReadsAttribute(attribute = "", description = "") })
+@WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
+@TriggerWhenEmpty
+public class IdylE3Async extends IdylE3 {
+
+	@Override
+	protected boolean isAsynchronous() {
+		return true;
+	}
+
+}
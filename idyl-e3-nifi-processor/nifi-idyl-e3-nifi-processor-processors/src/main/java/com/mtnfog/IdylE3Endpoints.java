@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+import com.mtnfog.idyl.e3.sdk.IdylE3Client;
+
+/**
+ * The Idyl E3 endpoints requests are balanced across. Each request is sent to the available
+ * endpoint with the fewest outstanding requests and, if it fails with an I/O error or a
+ * timeout, to each of the other available endpoints in turn. An endpoint that fails a number
+ * of requests in a row that way is not used until a recovery time has passed, after which a
+ * single request is sent to it to find out whether it has recovered. Any other failure is
+ * caused by the request itself so it is not retried and does not count against the endpoint.
+ */
+public class IdylE3Endpoints {
+
+	/**
+	 * A call to Idyl E3 that can be sent to any of the endpoints.
+	 */
+	public interface Call<T> {
+
+		T call(IdylE3Client client) throws Exception;
+
+	}
+
+	private final List<Endpoint> endpoints = new ArrayList<>();
+	private final int failureThreshold;
+	private final long recoveryTime;
+
+	/**
+	 * Creates the endpoints.
+	 * @param clients The clients of the endpoints keyed by their hosts.
+	 * @param failureThreshold The number of failed requests in a row after which an endpoint is not used.
+	 * @param recoveryTime The time in milliseconds before an endpoint that is not used is tried again.
+	 */
+	public IdylE3Endpoints(final Map<String, IdylE3Client> clients, final int failureThreshold, final long recoveryTime) {
+
+		for (final Map.Entry<String, IdylE3Client> client : clients.entrySet()) {
+			endpoints.add(new Endpoint(client.getKey(), client.getValue()));
+		}
+
+		this.failureThreshold = failureThreshold;
+		this.recoveryTime = recoveryTime;
+
+	}
+
+	/**
+	 * Sends a call to the endpoints until one of them succeeds.
+	 * @param call The call.
+	 * @return The result of the call.
+	 * @throws Exception The exception of the last endpoint the call failed on.
+	 * @throws NoEndpointAvailableException Thrown if none of the endpoints are available.
+	 */
+	public <T> T execute(final Call<T> call) throws Exception {
+
+		final Set<Endpoint> tried = new HashSet<>();
+		Exception failure = null;
+		Attempt attempt;
+
+		while ((attempt = acquire(tried)) != null) {
+
+			tried.add(attempt.endpoint);
+
+			try {
+
+				final T result = call.call(attempt.endpoint.client);
+
+				release(attempt, true);
+
+				return result;
+
+			} catch (Exception ex) {
+
+				if (!isEndpointFailure(ex)) {
+
+					// The endpoint answered so it is healthy, and any other endpoint would fail the same way.
+					release(attempt, true);
+					throw ex;
+
+				}
+
+				release(attempt, false);
+				failure = ex;
+
+			}
+
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+
+		throw new NoEndpointAvailableException("None of the Idyl E3 endpoints are available.");
+
+	}
+
+	private synchronized Attempt acquire(final Set<Endpoint> tried) {
+
+		final long now = System.currentTimeMillis();
+		Endpoint least = null;
+
+		for (final Endpoint endpoint : endpoints) {
+
+			if (!tried.contains(endpoint) && isAvailable(endpoint, now) && (least == null || endpoint.outstanding < least.outstanding)) {
+				least = endpoint;
+			}
+
+		}
+
+		if (least == null) {
+			return null;
+		}
+
+		least.outstanding++;
+
+		// The endpoint has recovered or failed again once this request completes.
+		final boolean probe = least.failures >= failureThreshold;
+
+		if (probe) {
+			least.probing = true;
+		}
+
+		return new Attempt(least, probe);
+
+	}
+
+	private synchronized void release(final Attempt attempt, final boolean success) {
+
+		final Endpoint endpoint = attempt.endpoint;
+
+		endpoint.outstanding--;
+
+		// Requests that were sent before the endpoint failed don't end its probe.
+		if (attempt.probe) {
+			endpoint.probing = false;
+		}
+
+		if (success) {
+
+			endpoint.failures = 0;
+
+		} else {
+
+			endpoint.failures++;
+
+			if (endpoint.failures >= failureThreshold) {
+				endpoint.unavailableUntil = System.currentTimeMillis() + recoveryTime;
+			}
+
+		}
+
+	}
+
+	private boolean isAvailable(final Endpoint endpoint, final long now) {
+		return endpoint.failures < failureThreshold || (now >= endpoint.unavailableUntil && !endpoint.probing);
+	}
+
+	/**
+	 * Gets whether a call failed because of the endpoints rather than what was sent to them, which is
+	 * when the exception, or any exception that caused it, is an I/O error, a timeout or because none
+	 * of the endpoints are available. Only such a call can succeed when it is sent again.
+	 * @param ex The exception the call failed with.
+	 * @return <code>true</code> if the call failed because of the endpoints.
+	 */
+	public static boolean isEndpointFailure(final Throwable ex) {
+
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+
+			if (cause instanceof IOException || cause instanceof TimeoutException || cause instanceof NoEndpointAvailableException) {
+				return true;
+			}
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Thrown when none of the endpoints are available.
+	 */
+	public static class NoEndpointAvailableException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		private NoEndpointAvailableException(final String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * A request sent to an endpoint.
+	 */
+	private static class Attempt {
+
+		private final Endpoint endpoint;
+		private final boolean probe;
+
+		private Attempt(final Endpoint endpoint, final boolean probe) {
+			this.endpoint = endpoint;
+			this.probe = probe;
+		}
+
+	}
+
+	private static class Endpoint {
+
+		private final String host;
+		private final IdylE3Client client;
+
+		// Guarded by the endpoints.
+		private int outstanding;
+		private int failures;
+		private long unavailableUntil;
+		private boolean probing;
+
+		private Endpoint(final String host, final IdylE3Client client) {
+			this.host = host;
+			this.client = client;
+		}
+
+	}
+
+}
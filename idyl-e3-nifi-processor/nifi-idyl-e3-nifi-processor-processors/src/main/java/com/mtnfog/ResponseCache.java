@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * A cache of Idyl E3 responses keyed by a hash of everything that determines the response.
+ * Responses are kept in memory up to a maximum number and, when a directory is given, in
+ * files up to a maximum total size so they outlive the processor. Responses in both tiers
+ * expire after a fixed time and the least recently used responses are evicted first.
+ */
+public class ResponseCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	// The directory may be shared so only files named like the cache's own files are ever read or removed.
+	private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{64}");
+	private static final Pattern TEMPORARY_PATTERN = Pattern.compile("[0-9a-f]{64}[0-9]+" + Pattern.quote(TEMPORARY_SUFFIX));
+
+	private final long expiration;
+	private final File directory;
+	private final long maxDirectorySize;
+	private final ComponentLog logger;
+	private final Map<String, Entry> entries;
+
+	// The sizes of the files in the directory keyed by their keys, least recently used first. Guarded by itself.
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+	private long directorySize;
+
+	/**
+	 * Creates a cache. Expired and partly written responses in the directory are removed and, if the
+	 * remaining responses are larger than the maximum, the oldest of them are removed too. Files in
+	 * the directory that aren't named like a response are left alone.
+	 * @param maxSize The maximum number of responses kept in memory.
+	 * @param expiration The time in milliseconds a response is kept.
+	 * @param directory The directory responses are also kept in, or <code>null</code> to only keep them in memory.
+	 * @param maxDirectorySize The maximum number of bytes of responses kept in the directory.
+	 * @param logger The logger that failures to read and write the directory are reported to.
+	 */
+	public ResponseCache(final int maxSize, final long expiration, final File directory, final long maxDirectorySize,
+			final ComponentLog logger) {
+
+		this.expiration = expiration;
+		this.directory = directory;
+		this.maxDirectorySize = maxDirectorySize;
+		this.logger = logger;
+
+		this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+
+		});
+
+		if (directory != null) {
+
+			final File[] existing = directory.listFiles();
+
+			if (existing != null) {
+
+				Arrays.sort(existing, new Comparator<File>() {
+
+					@Override
+					public int compare(final File a, final File b) {
+						return Long.compare(a.lastModified(), b.lastModified());
+					}
+
+				});
+
+				for (final File file : existing) {
+
+					if (!file.isFile()) {
+						continue;
+					}
+
+					if (TEMPORARY_PATTERN.matcher(file.getName()).matches()) {
+						file.delete();
+					} else if (KEY_PATTERN.matcher(file.getName()).matches()) {
+
+						if (isExpired(file.lastModified())) {
+							file.delete();
+						} else {
+							addFile(file.getName(), file.length());
+						}
+
+					}
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Gets the key of a request.
+	 * @param values The content and the parameters of the request.
+	 * @return A SHA-256 hash of the values.
+	 */
+	public static String getKey(final String... values) {
+
+		try {
+
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+			for (final String value : values) {
+
+				// Each value is prefixed by its length so values can't run into each other.
+				if (value == null) {
+					digest.update("-1:".getBytes(UTF8));
+				} else {
+					final byte[] bytes = value.getBytes(UTF8);
+					digest.update((bytes.length + ":").getBytes(UTF8));
+					digest.update(bytes);
+				}
+
+			}
+
+			final StringBuilder key = new StringBuilder();
+
+			for (final byte b : digest.digest()) {
+				key.append(String.format("%02x", b));
+			}
+
+			return key.toString();
+
+		} catch (NoSuchAlgorithmException ex) {
+
+			throw new IllegalStateException("SHA-256 is not available.", ex);
+
+		}
+
+	}
+
+	/**
+	 * Gets a response.
+	 * @param key The key of the request.
+	 * @return The response, or <code>null</code> if there is no response or it has expired.
+	 */
+	public String get(final String key) {
+
+		final Entry entry = entries.get(key);
+
+		if (entry != null) {
+
+			if (!isExpired(entry.created)) {
+				return entry.response;
+			}
+
+			entries.remove(key);
+
+		}
+
+		if (directory == null) {
+			return null;
+		}
+
+		final File file = new File(directory, key);
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		final long created = file.lastModified();
+
+		if (isExpired(created)) {
+			removeFile(key);
+			return null;
+		}
+
+		try {
+
+			final String response = FileUtils.readFileToString(file, UTF8);
+
+			entries.put(key, new Entry(response, created));
+
+			// Reading the file makes it the most recently used.
+			synchronized (files) {
+				files.get(key);
+			}
+
+			return response;
+
+		} catch (IOException ex) {
+
+			// A file that can't be read is a miss and the request is sent to Idyl E3.
+			logger.warn(String.format("Unable to read the cached response %s. Exception: %s", file, ex.getMessage()), ex);
+
+			return null;
+
+		}
+
+	}
+
+	/**
+	 * Adds a response.
+	 * @param key The key of the request.
+	 * @param response The response.
+	 */
+	public void put(final String key, final String response) {
+
+		entries.put(key, new Entry(response, System.currentTimeMillis()));
+
+		if (directory != null) {
+
+			final File file = new File(directory, key);
+			File temporary = null;
+
+			try {
+
+				// The response is written beside the cache file and moved so a concurrent read never sees part of it.
+				temporary = File.createTempFile(key, TEMPORARY_SUFFIX, directory);
+
+				FileUtils.writeStringToFile(temporary, response, UTF8);
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+				addFile(key, file.length());
+
+			} catch (IOException ex) {
+
+				// The response is still cached in memory.
+				logger.warn(String.format("Unable to write the cached response %s. Exception: %s", file, ex.getMessage()), ex);
+
+				if (temporary != null) {
+					temporary.delete();
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Records a file in the directory and removes the least recently used files until the
+	 * directory is within its maximum size.
+	 */
+	private void addFile(final String key, final long size) {
+
+		synchronized (files) {
+
+			final Long previous = files.put(key, size);
+
+			directorySize += size - (previous == null ? 0 : previous);
+
+			final Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+
+			while (directorySize > maxDirectorySize && eldest.hasNext()) {
+
+				final Map.Entry<String, Long> file = eldest.next();
+
+				new File(directory, file.getKey()).delete();
+				directorySize -= file.getValue();
+				eldest.remove();
+
+			}
+
+		}
+
+	}
+
+	private void removeFile(final String key) {
+
+		synchronized (files) {
+
+			final Long size = files.remove(key);
+
+			if (size != null) {
+				directorySize -= size;
+			}
+
+			new File(directory, key).delete();
+
+		}
+
+	}
+
+	private boolean isExpired(final long created) {
+		return System.currentTimeMillis() - created > expiration;
+	}
+
+	private static class Entry {
+
+		private final String response;
+		private final long created;
+
+		private Entry(final String response, final long created) {
+			this.response = response;
+			this.created = created;
+		}
+
+	}
+
+}
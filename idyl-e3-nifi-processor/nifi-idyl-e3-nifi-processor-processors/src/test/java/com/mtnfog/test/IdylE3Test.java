@@ -19,28 +19,60 @@ package com.mtnfog.test;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
+import org.apache.nifi.util.MockComponentLog;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.mtnfog.AdaptiveConcurrencyLimit;
+import com.mtnfog.ChunkedDocument;
 import com.mtnfog.IdylE3;
+import com.mtnfog.IdylE3Async;
+import com.mtnfog.IdylE3Endpoints;
+import com.mtnfog.ResponseCache;
 import com.mtnfog.entity.Entity;
+import com.mtnfog.idyl.e3.sdk.IdylE3Client;
+import com.mtnfog.idyl.e3.sdk.model.EntityExtractionResponse;
 
 public class IdylE3Test {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
     private TestRunner runner;
 
     @Before
@@ -72,4 +104,867 @@ public class IdylE3Test {
         
     }
     
-}
\ No newline at end of file
+    @Test
+    public void testClientReused() throws IOException {
+    	
+    	final AtomicInteger clients = new AtomicInteger();
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			clients.incrementAndGet();
+    			return newClient(new AnnotatingClient());
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.enqueue("Abraham Lincoln was president.".getBytes());
+        runner.run(2);
+        runner.enqueue("Thomas Jefferson was president.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 3);
+        runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0).assertContentEquals("<annotated>George Washington was president.</annotated>");
+        assertEquals(1, clients.get());
+        
+        runner.setProperty(IdylE3.IDYL_E3_HOST, "http://localhost:9001");
+        runner.enqueue("John Adams was president.".getBytes());
+        runner.run(1);
+        
+        assertEquals(2, clients.get());
+    	
+    }
+    
+    @Test
+    public void testBatch() throws IOException {
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					if (args[0].equals("fail")) {
+    						throw new IllegalStateException("Unable to annotate.");
+    					}
+    					
+    					// The language is returned so each response can be matched to its FlowFile's attributes.
+    					return args[2] + ":" + args[0];
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.IDYL_E3_LANGUAGE, "${language}");
+        runner.setProperty(IdylE3.BATCH_SIZE, "5");
+        runner.setProperty(IdylE3.CONCURRENT_REQUESTS, "3");
+        
+        final String[] languages = { "en", "de", "fr", "es", "it" };
+        
+        for (int i = 0; i < languages.length; i++) {
+        	
+        	final Map<String, String> attributes = new HashMap<>();
+        	attributes.put("language", languages[i]);
+        	
+        	runner.enqueue((i == 2 ? "fail" : "document " + i).getBytes(), attributes);
+        	
+        }
+        
+        runner.enqueue("document 5".getBytes());
+        runner.run(1);
+        
+        runner.assertTransferCount(IdylE3.REL_SUCCESS, 4);
+        runner.assertTransferCount(IdylE3.REL_FAILURE, 1);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        
+        final List<MockFlowFile> results = runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS);
+        
+        for (final MockFlowFile result : results) {
+        	
+        	final String language = result.getAttribute("language");
+        	final String response = new String(runner.getContentAsByteArray(result), "UTF-8");
+        	
+        	assertTrue(response, response.startsWith(language + ":document "));
+        	result.assertAttributeEquals("idyl-e3-response", response);
+        	
+        }
+        
+        runner.getFlowFilesForRelationship(IdylE3.REL_FAILURE).get(0).assertContentEquals("fail");
+    	
+    }
+    
+    @Test
+    public void testAsynchronous() throws Exception {
+    	
+    	final CountDownLatch responses = new CountDownLatch(1);
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3Async() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					responses.await();
+    					
+    					return new AnnotatingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "sanitize");
+        runner.setProperty(IdylE3.MAX_IN_FLIGHT_REQUESTS, "2");
+        runner.setProperty(IdylE3.BATCH_SIZE, "5");
+        runner.setProperty(IdylE3.CONCURRENT_REQUESTS, "2");
+        
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.enqueue("Abraham Lincoln was president.".getBytes());
+        runner.enqueue("Thomas Jefferson was president.".getBytes());
+        
+        // The trigger returns without waiting and the third FlowFile waits for a free request.
+        runner.run(1, false, true);
+        
+        runner.assertTransferCount(IdylE3.REL_SUCCESS, 0);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        
+        responses.countDown();
+        
+        final long timeout = System.currentTimeMillis() + 10000;
+        
+        while (runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).size() < 3 && System.currentTimeMillis() < timeout) {
+        	runner.run(1, false, false);
+        	Thread.sleep(10);
+        }
+        
+        runner.run(1, true, false);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 3);
+        runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0).assertContentEquals("<sanitized>George Washington was president.</sanitized>");
+    	
+    }
+    
+    @Test
+    public void testYieldWhenIdle() {
+    	
+    	// Only the asynchronous processor is triggered when its queue is empty so only it backs off itself.
+    	assertFalse(IdylE3.class.isAnnotationPresent(TriggerWhenEmpty.class));
+    	assertTrue(IdylE3Async.class.isAnnotationPresent(TriggerWhenEmpty.class));
+    	
+    	runner = newAnnotatingRunner(false);
+    	runner.run(1);
+    	
+    	assertFalse(((MockProcessContext) runner.getProcessContext()).isYieldCalled());
+    	
+    	runner = newAnnotatingRunner(true);
+    	runner.run(1);
+    	
+    	assertTrue(((MockProcessContext) runner.getProcessContext()).isYieldCalled());
+    	
+    	runner = newAnnotatingRunner(true);
+    	runner.enqueue("George Washington was president.".getBytes());
+    	runner.run(1);
+    	
+    	assertFalse(((MockProcessContext) runner.getProcessContext()).isYieldCalled());
+    	
+    }
+    
+    private TestRunner newAnnotatingRunner(final boolean asynchronous) {
+    	
+    	final TestRunner runner = TestRunners.newTestRunner(asynchronous ? new IdylE3Async() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new AnnotatingClient());
+    		}
+    		
+    	} : new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new AnnotatingClient());
+    		}
+    		
+    	});
+    	
+    	runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+    	
+    	return runner;
+    	
+    }
+    
+    @Test
+    public void testResponseCache() throws IOException {
+    	
+    	final AtomicInteger requests = new AtomicInteger();
+    	
+    	final IdylE3 processor = new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.incrementAndGet();
+    					
+    					return new AnnotatingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	};
+    	
+    	runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.IDYL_E3_LANGUAGE, "${language}");
+        runner.setProperty(IdylE3.RESPONSE_CACHE_SIZE, "10");
+        runner.setProperty(IdylE3.RESPONSE_CACHE_DIRECTORY, folder.getRoot().getAbsolutePath());
+        
+        final Map<String, String> german = new HashMap<>();
+        german.put("language", "de");
+        
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.enqueue("George Washington was president.".getBytes(), german);
+        runner.run(3);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 3);
+        runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(1).assertContentEquals("<annotated>George Washington was president.</annotated>");
+        assertEquals(2, requests.get());
+        
+        // A new processor answers from the responses kept in the directory.
+        runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.IDYL_E3_LANGUAGE, "${language}");
+        runner.setProperty(IdylE3.RESPONSE_CACHE_DIRECTORY, folder.getRoot().getAbsolutePath());
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0).assertContentEquals("<annotated>George Washington was president.</annotated>");
+        assertEquals(2, requests.get());
+    	
+    }
+    
+    @Test
+    public void testResponseCacheDirectorySize() throws IOException {
+    	
+    	final File directory = folder.newFolder();
+    	final MockComponentLog log = new MockComponentLog("cache", this);
+    	
+    	// Nothing is kept in memory so every response is read back from the directory.
+    	final ResponseCache cache = new ResponseCache(0, 60000, directory, 25, log);
+    	final String a = ResponseCache.getKey("a");
+    	final String b = ResponseCache.getKey("b");
+    	final String c = ResponseCache.getKey("c");
+    	
+    	cache.put(a, "0123456789");
+    	cache.put(b, "0123456789");
+    	assertEquals("0123456789", cache.get(a));
+    	cache.put(c, "0123456789");
+    	
+    	// The least recently used response is evicted to keep the directory within 25 bytes.
+    	assertNull(cache.get(b));
+    	assertEquals("0123456789", cache.get(a));
+    	assertEquals("0123456789", cache.get(c));
+    	assertEquals(2, directory.listFiles().length);
+    	
+    	// Files that aren't the cache's own are neither indexed nor removed.
+    	final File other = new File(directory, "other.tmp");
+    	FileUtils.writeStringToFile(other, "01234567890123456789012345", "UTF-8");
+    	other.setLastModified(0);
+    	
+    	final ResponseCache reopened = new ResponseCache(0, 60000, directory, 25, log);
+    	reopened.put(ResponseCache.getKey("d"), "0123456789");
+    	
+    	assertTrue(other.exists());
+    	assertEquals("0123456789", reopened.get(c));
+    	assertNull(reopened.get(a));
+    	assertEquals(3, directory.listFiles().length);
+    	
+    	FileUtils.deleteDirectory(directory);
+    	cache.put(ResponseCache.getKey("d"), "0123456789");
+    	
+    	assertFalse(log.getWarnMessages().isEmpty());
+    	
+    }
+    
+    @Test
+    public void testMaxResponseAttributeSize() throws IOException {
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new AnnotatingClient());
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.MAX_RESPONSE_ATTRIBUTE_SIZE, "50 B");
+        runner.enqueue("George Washington.".getBytes());
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.run(2);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 2);
+        
+        final List<MockFlowFile> results = runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS);
+        
+        results.get(0).assertAttributeEquals("idyl-e3-response", "<annotated>George Washington.</annotated>");
+        
+        // The larger response is only in the content.
+        results.get(1).assertContentEquals("<annotated>George Washington was president.</annotated>");
+        results.get(1).assertAttributeNotExists("idyl-e3-response");
+        
+        // A maximum of 0 B never writes the attribute, even for an empty response.
+        runner.clearTransferState();
+        runner.setProperty(IdylE3.MAX_RESPONSE_ATTRIBUTE_SIZE, "0 B");
+        runner.enqueue("".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0).assertAttributeNotExists("idyl-e3-response");
+    	
+    }
+    
+    @Test
+    public void testMaxResponseAttributeSizeExtract() throws IOException {
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new ExtractingClient());
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.MAX_RESPONSE_ATTRIBUTE_SIZE, "1 KB");
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 1);
+        
+        // The serialized entities are kept from the write rather than read back from the content.
+        final MockFlowFile result = runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0);
+        result.assertAttributeEquals("idyl-e3-response", new String(runner.getContentAsByteArray(result), "UTF-8"));
+    	
+    }
+    
+    @Test
+    public void testChunkedDocument() {
+    	
+    	final String text = "George Washington was president. John Adams was president. Thomas Jefferson was president.";
+    	
+    	final ChunkedDocument document = new ChunkedDocument(text, 60, 30);
+    	final List<String> chunks = document.getChunks();
+    	
+    	assertEquals(2, chunks.size());
+    	assertEquals("George Washington was president. John Adams was president. ", chunks.get(0));
+    	assertEquals("John Adams was president. Thomas Jefferson was president.", chunks.get(1));
+    	
+    	final List<JsonArray> entities = new ArrayList<>();
+    	entities.add(new JsonParser().parse("[{\"text\":\"George Washington\",\"confidence\":0.9,\"span\":{\"tokenStart\":0,\"tokenEnd\":2,\"characterStart\":0,\"characterEnd\":17}},"
+    			+ "{\"text\":\"John Adams\",\"confidence\":0.6,\"span\":{\"tokenStart\":5,\"tokenEnd\":7,\"characterStart\":33,\"characterEnd\":43}},"
+    			+ "{\"text\":\"president\",\"confidence\":0.5}]").getAsJsonArray());
+    	entities.add(new JsonParser().parse("[{\"text\":\"John Adams\",\"confidence\":0.8,\"span\":{\"tokenStart\":0,\"tokenEnd\":2,\"characterStart\":0,\"characterEnd\":10}},"
+    			+ "{\"text\":\"Thomas Jefferson\",\"confidence\":0.7,\"span\":{\"tokenStart\":5,\"tokenEnd\":7,\"characterStart\":26,\"characterEnd\":42}},"
+    			+ "{\"text\":\"president\",\"confidence\":0.5}]").getAsJsonArray());
+    	
+    	final JsonArray merged = document.merge(entities);
+    	
+    	// The entity in the repeated sentence is kept once with its highest confidence and the offsets are in the document.
+    	// Entities without offsets are kept once when both chunks found them and their text is in the repeated sentence.
+    	assertEquals(4, merged.size());
+    	assertEquals("John Adams", merged.get(1).getAsJsonObject().get("text").getAsString());
+    	assertEquals(0.8, merged.get(1).getAsJsonObject().get("confidence").getAsDouble(), 0);
+    	assertEquals(33, merged.get(1).getAsJsonObject().getAsJsonObject("span").get("characterStart").getAsInt());
+    	assertEquals("president", merged.get(2).getAsJsonObject().get("text").getAsString());
+    	assertEquals(59, merged.get(3).getAsJsonObject().getAsJsonObject("span").get("characterStart").getAsInt());
+    	
+    	// Token offsets are relative to Idyl E3's tokens in each chunk so they are removed.
+    	assertFalse(merged.get(0).getAsJsonObject().getAsJsonObject("span").has("tokenStart"));
+    	
+    }
+    
+    @Test
+    public void testChunkedExtract() throws IOException {
+    	
+    	final AtomicInteger requests = new AtomicInteger();
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.incrementAndGet();
+    					
+    					return new ExtractingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.CHUNK_SIZE, "60");
+        runner.setProperty(IdylE3.CHUNK_OVERLAP, "30");
+        runner.enqueue("George Washington was president. He was the first one. Thomas Jefferson was president.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 1);
+        
+        // Each chunk is a request and their entities are merged into one array.
+        assertEquals(2, requests.get());
+        
+        final JsonArray entities = new JsonParser().parse(new String(runner.getContentAsByteArray(runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0)), "UTF-8")).getAsJsonArray();
+        
+        assertEquals(2, entities.size());
+        assertEquals("George Washington", entities.get(0).getAsJsonObject().get("text").getAsString());
+        assertEquals("Thomas Jefferson", entities.get(1).getAsJsonObject().get("text").getAsString());
+    	
+    }
+    
+    @Test
+    public void testChunkedExtractWithoutOffsets() throws IOException {
+    	
+    	final AtomicInteger requests = new AtomicInteger();
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.incrementAndGet();
+    					
+    					return new ExtractingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+    	final String document = "George Washington was president. Abraham Lincoln was too. Thomas Jefferson was president.";
+    	
+        runner.setProperty(IdylE3.CHUNK_SIZE, "60");
+        runner.setProperty(IdylE3.CHUNK_OVERLAP, "30");
+        runner.setProperty(IdylE3.RESPONSE_CACHE_SIZE, "10");
+        runner.enqueue(document.getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 1);
+        assertEquals(2, requests.get());
+        
+        final JsonArray entities = new JsonParser().parse(new String(runner.getContentAsByteArray(runner.getFlowFilesForRelationship(IdylE3.REL_SUCCESS).get(0)), "UTF-8")).getAsJsonArray();
+        
+        // Abraham Lincoln is in the text both chunks share and is only kept once.
+        assertEquals(3, entities.size());
+        assertEquals("George Washington", entities.get(0).getAsJsonObject().get("text").getAsString());
+        assertEquals("Abraham Lincoln", entities.get(1).getAsJsonObject().get("text").getAsString());
+        assertEquals("Thomas Jefferson", entities.get(2).getAsJsonObject().get("text").getAsString());
+        
+        // The chunking is part of the cached response's key.
+        runner.setProperty(IdylE3.CHUNK_OVERLAP, "0");
+        runner.enqueue(document.getBytes());
+        runner.run(1);
+        
+        assertEquals(4, requests.get());
+    	
+    }
+    
+    @Test
+    public void testEndpointFailover() throws IOException {
+    	
+    	final Map<String, AtomicInteger> requests = new HashMap<>();
+    	requests.put("http://e3-1:9000", new AtomicInteger());
+    	requests.put("http://e3-2:9000", new AtomicInteger());
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(final String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.get(host).incrementAndGet();
+    					
+    					if (host.equals("http://e3-1:9000")) {
+    						throw new IllegalStateException("Unable to connect.", new ConnectException("Connection refused."));
+    					}
+    					
+    					return new AnnotatingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_HOST, "http://e3-1:9000, http://e3-2:9000");
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.ENDPOINT_FAILURE_THRESHOLD, "2");
+        runner.setProperty(IdylE3.ENDPOINT_RECOVERY_TIME, "1 hour");
+        
+        for (int i = 0; i < 5; i++) {
+        	runner.enqueue("George Washington was president.".getBytes());
+        }
+        
+        runner.run(5);
+        
+        // Every request is retried on the healthy endpoint and the failing one stops being used.
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_SUCCESS, 5);
+        assertEquals(2, requests.get("http://e3-1:9000").get());
+        assertEquals(5, requests.get("http://e3-2:9000").get());
+    	
+    }
+    
+    @Test
+    public void testDocumentErrorsKeepEndpoint() throws IOException {
+    	
+    	final AtomicInteger requests = new AtomicInteger();
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(final String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.incrementAndGet();
+    					
+    					if (args[0].equals("fail")) {
+    						throw new IllegalArgumentException("Unable to annotate the document.");
+    					}
+    					
+    					return new AnnotatingClient().invoke(proxy, method, args);
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_HOST, "http://e3-1:9000, http://e3-2:9000");
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.ENDPOINT_FAILURE_THRESHOLD, "1");
+        runner.setProperty(IdylE3.ENDPOINT_RECOVERY_TIME, "1 hour");
+        
+        runner.enqueue("fail".getBytes());
+        runner.enqueue("fail".getBytes());
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.run(3);
+        
+        // A bad document is not sent to the other endpoint and doesn't take either endpoint out of use.
+        runner.assertTransferCount(IdylE3.REL_FAILURE, 2);
+        runner.assertTransferCount(IdylE3.REL_SUCCESS, 1);
+        assertEquals(3, requests.get());
+    	
+    }
+    
+    @Test
+    public void testEndpointSingleProbe() throws Exception {
+    	
+    	final CountDownLatch started = new CountDownLatch(1);
+    	final CountDownLatch inFlight = new CountDownLatch(1);
+    	final CountDownLatch probing = new CountDownLatch(1);
+    	final CountDownLatch probe = new CountDownLatch(1);
+    	
+    	final IdylE3Client client = newClient(new InvocationHandler() {
+    		
+    		@Override
+    		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    			
+    			if (args[0].equals("in flight")) {
+    				started.countDown();
+    				inFlight.await();
+    				throw new IllegalStateException("Unable to connect.", new ConnectException("Connection reset."));
+    			} else if (args[0].equals("fail")) {
+    				throw new IllegalStateException("Unable to connect.", new ConnectException("Connection refused."));
+    			} else if (args[0].equals("probe")) {
+    				probing.countDown();
+    				probe.await();
+    			}
+    			
+    			return new AnnotatingClient().invoke(proxy, method, args);
+    			
+    		}
+    		
+    	});
+    	
+    	final IdylE3Endpoints endpoints = new IdylE3Endpoints(Collections.singletonMap("http://e3-1:9000", client), 1, 0);
+    	
+    	// A request is in flight when the endpoint fails and a probe is sent once it is due to recover.
+    	final Thread first = new Thread(newAnnotation(endpoints, "in flight"));
+    	first.start();
+    	started.await();
+    	
+    	try {
+    		endpoints.execute(annotate("fail"));
+    		fail();
+    	} catch (IllegalStateException ex) {
+    		assertTrue(ex.getCause() instanceof ConnectException);
+    	}
+    	
+    	final Thread second = new Thread(newAnnotation(endpoints, "probe"));
+    	second.start();
+    	probing.await();
+    	
+    	// The request that was in flight finishes without ending the probe so no second probe is sent.
+    	inFlight.countDown();
+    	first.join();
+    	
+    	try {
+    		endpoints.execute(annotate("George Washington was president."));
+    		fail();
+    	} catch (IllegalStateException ex) {
+    		assertEquals("None of the Idyl E3 endpoints are available.", ex.getMessage());
+    	}
+    	
+    	probe.countDown();
+    	second.join();
+    	
+    	assertEquals("<annotated>John Adams was president.</annotated>", endpoints.execute(annotate("John Adams was president.")));
+    	
+    }
+    
+    private static IdylE3Endpoints.Call<String> annotate(final String text) {
+    	
+    	return new IdylE3Endpoints.Call<String>() {
+    		
+    		@Override
+    		public String call(IdylE3Client client) {
+    			return client.annotate(text, 0, "en", null, null);
+    		}
+    		
+    	};
+    	
+    }
+    
+    private static Runnable newAnnotation(final IdylE3Endpoints endpoints, final String text) {
+    	
+    	return new Runnable() {
+    		
+    		@Override
+    		public void run() {
+    			
+    			try {
+    				endpoints.execute(annotate(text));
+    			} catch (Exception ex) {
+    				// The outcome is seen through the endpoints.
+    			}
+    			
+    		}
+    		
+    	};
+    	
+    }
+    
+    @Test
+    public void testRetry() throws IOException {
+    	
+    	final AtomicInteger requests = new AtomicInteger();
+    	
+    	runner = TestRunners.newTestRunner(new IdylE3() {
+    		
+    		@Override
+    		protected IdylE3Client createClient(String host, String apiKey) {
+    			return newClient(new InvocationHandler() {
+    				
+    				@Override
+    				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    					
+    					requests.incrementAndGet();
+    					
+    					if (args[0].equals("Not a document.")) {
+    						throw new IllegalArgumentException("Invalid document.");
+    					}
+    					
+    					throw new IllegalStateException("Service unavailable.", new ConnectException("Connection refused."));
+    					
+    				}
+    				
+    			});
+    		}
+    		
+    	});
+    	
+        runner.setProperty(IdylE3.IDYL_E3_ACTION, "annotate");
+        runner.setProperty(IdylE3.MAX_RETRIES, "1");
+        runner.setProperty(IdylE3.INITIAL_RETRY_BACKOFF, "1 hour");
+        runner.addConnection(IdylE3.REL_RETRY);
+        runner.enqueue("George Washington was president.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_RETRY, 1);
+        
+        MockFlowFile retry = runner.getFlowFilesForRelationship(IdylE3.REL_RETRY).get(0);
+        
+        assertTrue(retry.isPenalized());
+        retry.assertAttributeEquals("idyl-e3.retry.count", "1");
+        assertEquals(1, requests.get());
+        
+        // The FlowFile is sent back to retry without a request until its backoff has passed.
+        runner.clearTransferState();
+        runner.enqueue(retry);
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_RETRY, 1);
+        assertEquals(1, requests.get());
+        
+        final Map<String, String> attributes = new HashMap<>(retry.getAttributes());
+        attributes.put("idyl-e3.retry.after", "0");
+        
+        // The last retry fails.
+        runner.clearTransferState();
+        runner.enqueue("George Washington was president.".getBytes(), attributes);
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_FAILURE, 1);
+        assertEquals(2, requests.get());
+        
+        // A document Idyl E3 rejects would be rejected again so it is never retried.
+        runner.clearTransferState();
+        runner.enqueue("Not a document.".getBytes());
+        runner.run(1);
+        
+        runner.assertAllFlowFilesTransferred(IdylE3.REL_FAILURE, 1);
+        assertEquals(3, requests.get());
+    	
+    }
+    
+    @Test
+    public void testAdaptiveConcurrencyLimit() throws InterruptedException {
+    	
+    	final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 1000);
+    	
+    	limit.acquire();
+    	limit.release(5000, true);
+    	
+    	// A slow request halves the limit.
+    	assertEquals(4, limit.getLimit());
+    	
+    	// Another slow request within the target latency does not halve it again.
+    	limit.acquire();
+    	limit.release(5000, false);
+    	
+    	assertEquals(4, limit.getLimit());
+    	
+    	// Fast requests raise it by about one per limit's worth of requests.
+    	for (int i = 0; i < 5; i++) {
+    		limit.acquire();
+    		limit.release(10, true);
+    	}
+    	
+    	assertEquals(5, limit.getLimit());
+    	
+    	// A request released without its outcome leaves the limit as it is.
+    	limit.acquire();
+    	limit.release();
+    	
+    	assertEquals(5, limit.getLimit());
+    	
+    }
+    
+    /**
+     * Creates a client backed by a handler so the tests do not depend on the SDK's implementation.
+     */
+    static IdylE3Client newClient(InvocationHandler handler) {
+    	return (IdylE3Client) Proxy.newProxyInstance(IdylE3Client.class.getClassLoader(), new Class<?>[] { IdylE3Client.class }, handler);
+    }
+    
+    /**
+     * Extracts each pair of capitalized words as an entity.
+     */
+    static class ExtractingClient implements InvocationHandler {
+    	
+    	private static final Pattern NAME = Pattern.compile("\\p{Lu}\\p{L}+ \\p{Lu}\\p{L}+");
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			if (method.getName().equals("extract")) {
+				
+				final JsonArray entities = new JsonArray();
+				final Matcher name = NAME.matcher((String) args[0]);
+				
+				while (name.find()) {
+					
+					final JsonObject entity = new JsonObject();
+					entity.addProperty("text", name.group());
+					entity.addProperty("confidence", 0.9);
+					
+					entities.add(entity);
+					
+				}
+				
+				final JsonObject response = new JsonObject();
+				response.add("entities", entities);
+				
+				return new Gson().fromJson(response, EntityExtractionResponse.class);
+				
+			}
+			
+			throw new UnsupportedOperationException(method.getName());
+			
+		}
+    	
+    }
+    
+    /**
+     * Annotates and sanitizes text by wrapping it in tags.
+     */
+    static class AnnotatingClient implements InvocationHandler {
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			
+			if (method.getName().equals("annotate")) {
+				return "<annotated>" + args[0] + "</annotated>";
+			} else if (method.getName().equals("sanitize")) {
+				return "<sanitized>" + args[0] + "</sanitized>";
+			}
+			
+			throw new UnsupportedOperationException(method.getName());
+			
+		}
+    	
+    }
+    
+}
@@ -18,43 +18,168 @@ package com.mtnfog;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.DynamicRelationship;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.FlowFileFilters;
+import org.apache.nifi.processor.util.StandardValidators;
 import com.google.gson.Gson;
+import com.mtnfog.LanguageModelCache.CachedModel;
 import opennlp.tools.langdetect.Language;
-import opennlp.tools.langdetect.LanguageDetector;
-import opennlp.tools.langdetect.LanguageDetectorME;
-import opennlp.tools.langdetect.LanguageDetectorModel;
 
 @Tags({ "opennlp, nlp, language" })
 @CapabilityDescription("Performs NLP language detection using OpenNLP.")
 @SeeAlso({})
 @ReadsAttributes({ @ReadsAttribute(attribute = "", description = "") })
-@WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
+@WritesAttributes({ @WritesAttribute(attribute = "language", description = "The most probable ISO-639-3 language code when the destination is flowfile-attribute."),
+	@WritesAttribute(attribute = "language.confidence", description = "The confidence of the most probable language when the destination is flowfile-attribute.") })
+@DynamicProperty(name = "Relationship name", value = "Comma-separated ISO-639-3 language codes",
+	description = "Routes FlowFiles whose most probable language is one of the language codes to the relationship of this name.")
+@DynamicRelationship(name = "Name from dynamic property", description = "FlowFiles whose most probable language is one of the property's language codes.")
 @SideEffectFree
+@SupportsBatching
 public class LangDetect extends AbstractProcessor {
+
+	// Confidences are probabilities so a threshold outside 0 to 1 would keep either everything or nothing.
+	private static final Validator CONFIDENCE_VALIDATOR = new Validator() {
+
+		@Override
+		public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+
+			boolean valid;
+
+			try {
+				final double confidence = Double.parseDouble(input);
+				valid = confidence >= 0 && confidence <= 1;
+			} catch (NumberFormatException ex) {
+				valid = false;
+			}
+
+			return new ValidationResult.Builder().subject(subject).input(input).valid(valid)
+					.explanation("must be a number between 0 and 1").build();
+
+		}
+
+	};
+
+	public static final PropertyDescriptor MODEL_PATH = new PropertyDescriptor.Builder()
+			.name("Model Path")
+			.defaultValue("langdetect-183.bin")
+			.description("The file system path or classpath resource of the OpenNLP language detection model. "
+					+ "Processors configured with the same model share a single copy of it.")
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Batch Size")
+			.defaultValue("1")
+			.description("The maximum number of FlowFiles to process in a single execution.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Batch Data Size")
+			.defaultValue("1 MB")
+			.description("The maximum combined content size of the FlowFiles processed in a single execution. "
+					+ "At least one FlowFile is always processed, even if it is larger than this value.")
+			.required(true)
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor MAX_SAMPLE_CHARACTERS = new PropertyDescriptor.Builder()
+			.name("Max Characters to Sample")
+			.defaultValue("0")
+			.description("The maximum number of characters read from the start of the content to detect the language. "
+					+ "Set to 0 to use the entire content.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final String DESTINATION_CONTENT = "flowfile-content";
+	public static final String DESTINATION_ATTRIBUTE = "flowfile-attribute";
+
+	public static final PropertyDescriptor DESTINATION = new PropertyDescriptor.Builder()
+			.name("Destination")
+			.defaultValue(DESTINATION_CONTENT)
+			.description("Whether the detected languages replace the FlowFile content as JSON or are written to the "
+					+ "language and language.confidence attributes, leaving the content untouched.")
+			.allowableValues(DESTINATION_CONTENT, DESTINATION_ATTRIBUTE)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor MAX_LANGUAGES = new PropertyDescriptor.Builder()
+			.name("Max Languages")
+			.defaultValue("0")
+			.description("The maximum number of most probable languages to output. Set to 0 to output all languages.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor MIN_CONFIDENCE = new PropertyDescriptor.Builder()
+			.name("Minimum Confidence")
+			.defaultValue("0")
+			.description("Languages with a confidence below this value, between 0 and 1, are not output.")
+			.required(true)
+			.addValidator(CONFIDENCE_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("Result Cache Size")
+			.defaultValue("0")
+			.description("The maximum number of predictions to cache, keyed by a hash of the scored text, "
+					+ "so repeated texts skip the model. Set to 0 to disable the cache.")
+			.required(true)
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+			.name("Result Cache Expiration")
+			.defaultValue("10 mins")
+			.description("The time after which a cached prediction expires.")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
 	
 	public static final Relationship REL_SUCCESS = new Relationship.Builder()
 			.name("success").description("success").build();
@@ -62,15 +187,61 @@ public class LangDetect extends AbstractProcessor {
 	public static final Relationship REL_FAILURE = new Relationship.Builder()
 			.name("failure").description("failure").build();
 
+	public static final Relationship REL_UNMATCHED = new Relationship.Builder()
+			.name("unmatched")
+			.description("When languages are routed, FlowFiles whose most probable language is not routed to any relationship.")
+			.build();
+
+	public static final Relationship REL_LOW_CONFIDENCE = new Relationship.Builder()
+			.name("low confidence")
+			.description("When languages are routed, FlowFiles for which no language meets the minimum confidence.")
+			.build();
+
+	// Dynamic properties can't be named after the fixed relationships.
+	private static final Set<String> RESERVED_ROUTE_NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			REL_SUCCESS.getName(), REL_FAILURE.getName(), REL_UNMATCHED.getName(), REL_LOW_CONFIDENCE.getName())));
+
+	private static final Validator ROUTE_NAME_VALIDATOR = new Validator() {
+
+		@Override
+		public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+
+			return new ValidationResult.Builder().subject(subject).input(input).valid(!RESERVED_ROUTE_NAMES.contains(subject))
+					.explanation("the name of a dynamic property can't be one of " + RESERVED_ROUTE_NAMES).build();
+
+		}
+
+	};
+
 	private List<PropertyDescriptor> descriptors;
-	private Set<Relationship> relationships;
+	private volatile Set<Relationship> relationships;
+	
+	// The language codes of each dynamic property, keyed by property name, and the relationships they route to.
+	private final Map<String, String> routeProperties = new HashMap<>();
+	private volatile Map<Relationship, Set<String>> routes = Collections.emptyMap();
 	
 	private Gson gson;
-	private LanguageDetector languageDetector;
+	private volatile CachedModel cachedModel;
+	
+	// The detectors backed by the shared, immutable model, dropped when the processor stops so the model can be freed.
+	private volatile LanguageDetectorPool detectorPool;
+	private volatile LanguageResultCache resultCache;
 	
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 
+		descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(MODEL_PATH);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(MAX_BATCH_SIZE);
+		descriptors.add(MAX_SAMPLE_CHARACTERS);
+		descriptors.add(DESTINATION);
+		descriptors.add(MAX_LANGUAGES);
+		descriptors.add(MIN_CONFIDENCE);
+		descriptors.add(CACHE_SIZE);
+		descriptors.add(CACHE_EXPIRATION);
+		descriptors = Collections.unmodifiableList(descriptors);
+
 		relationships = new HashSet<Relationship>();
 		relationships.add(REL_SUCCESS);
 		relationships.add(REL_FAILURE);
@@ -78,20 +249,102 @@ public class LangDetect extends AbstractProcessor {
 
 		gson = new Gson();
 
-		try {
+	}
+	
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		
+		return new PropertyDescriptor.Builder()
+				.name(propertyDescriptorName)
+				.description("Routes FlowFiles whose most probable language is one of these comma-separated ISO-639-3 codes to the "
+						+ propertyDescriptorName + " relationship.")
+				.required(false)
+				.dynamic(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.addValidator(ROUTE_NAME_VALIDATOR)
+				.build();
+		
+	}
+	
+	@Override
+	public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+		
+		if (!descriptor.isDynamic()) {
+			return;
+		}
+		
+		synchronized (routeProperties) {
 			
-			final InputStream resourceAsStream = this.getClass().getClassLoader().getResourceAsStream("langdetect-183.bin");
-			final LanguageDetectorModel m = new LanguageDetectorModel(resourceAsStream);
-			languageDetector = new LanguageDetectorME(m);
+			if (newValue == null || RESERVED_ROUTE_NAMES.contains(descriptor.getName())) {
+				routeProperties.remove(descriptor.getName());
+			} else {
+				routeProperties.put(descriptor.getName(), newValue);
+			}
+			
+			final Map<Relationship, Set<String>> newRoutes = new HashMap<>();
+			
+			for (final Map.Entry<String, String> entry : routeProperties.entrySet()) {
+				
+				final Set<String> languages = new HashSet<>();
+				
+				for (final String language : entry.getValue().split(",")) {
+					if (!language.trim().isEmpty()) {
+						languages.add(language.trim());
+					}
+				}
+				
+				newRoutes.put(new Relationship.Builder().name(entry.getKey()).build(), languages);
+				
+			}
+			
+			final Set<Relationship> newRelationships = new HashSet<>();
+			newRelationships.add(REL_FAILURE);
+			
+			if (newRoutes.isEmpty()) {
+				newRelationships.add(REL_SUCCESS);
+			} else {
+				newRelationships.addAll(newRoutes.keySet());
+				newRelationships.add(REL_UNMATCHED);
+				newRelationships.add(REL_LOW_CONFIDENCE);
+			}
+			
+			routes = Collections.unmodifiableMap(newRoutes);
+			relationships = Collections.unmodifiableSet(newRelationships);
 			
-			resourceAsStream.close();
-
-		} catch (IOException ex) {
-
-			getLogger().error("Unable to initialize langdetect processor: " + ex.getMessage());
-
 		}
-
+		
+	}
+	
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) throws IOException {
+		
+		cachedModel = LanguageModelCache.acquire(context.getProperty(MODEL_PATH).getValue());
+		
+		detectorPool = new LanguageDetectorPool(cachedModel.getModel(), context.getMaxConcurrentTasks());
+		
+		final int cacheSize = context.getProperty(CACHE_SIZE).asInteger();
+		
+		if (cacheSize > 0) {
+			resultCache = new LanguageResultCache(cacheSize, context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS));
+		} else {
+			resultCache = null;
+		}
+		
+	}
+	
+	@OnStopped
+	public void onStopped() {
+		
+		if (detectorPool != null) {
+			detectorPool.clear();
+			detectorPool = null;
+		}
+		
+		if (cachedModel != null) {
+			LanguageModelCache.release(cachedModel);
+			cachedModel = null;
+		}
+		
 	}
 	
 	 protected FilenameFilter getJarFilenameFilter(){
@@ -111,30 +364,76 @@ public class LangDetect extends AbstractProcessor {
 	@Override
 	public void onTrigger(final ProcessContext ctx,	final ProcessSession session) throws ProcessException {
 		
-		FlowFile flowFile = session.get();
+		final int batchSize = ctx.getProperty(BATCH_SIZE).asInteger();
+		final double maxBatchSize = ctx.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
 		
-		if (flowFile == null) {
+		final List<FlowFile> flowFiles = session.get(FlowFileFilters.newSizeBasedFilter(maxBatchSize, DataUnit.B, batchSize));
+		
+		if (flowFiles.isEmpty()) {
 			return;
 		}
 
+		// All of the FlowFiles in the batch are transferred in this session so they share a single commit.
+		for (final FlowFile flowFile : flowFiles) {
+			detect(ctx, session, flowFile);
+		}
+
+	}
+	
+	private void detect(final ProcessContext ctx, final ProcessSession session, FlowFile flowFile) {
+
+		final int maxSampleCharacters = ctx.getProperty(MAX_SAMPLE_CHARACTERS).asInteger();
+		final String destination = ctx.getProperty(DESTINATION).getValue();
+		final int maxLanguages = ctx.getProperty(MAX_LANGUAGES).asInteger();
+		final double minConfidence = ctx.getProperty(MIN_CONFIDENCE).asDouble();
+		
 		try {
+			
+			final AtomicReference<Language[]> value = new AtomicReference<>();
+			final long size = flowFile.getSize();
 						
-			flowFile = session.write(flowFile, new StreamCallback() {
+			session.read(flowFile, new InputStreamCallback() {
 				
 				@Override
-				public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+				public void process(InputStream inputStream) throws IOException {
 					
-					final String input = IOUtils.toString(inputStream, Charset.forName("UTF-8"));
-					final Language[] languages = languageDetector.predictLanguages(input);
-					final String json = gson.toJson(languages);
-
-					IOUtils.write(json, outputStream, Charset.forName("UTF-8"));							
+					final String input = readSample(inputStream, maxSampleCharacters, size);
+					value.set(predictLanguages(session, input));
 	
 				}
 				
 			});
 			
-			session.transfer(flowFile, REL_SUCCESS);
+			final Language[] languages = filterLanguages(value.get(), maxLanguages, minConfidence);
+			
+			if (DESTINATION_ATTRIBUTE.equals(destination)) {
+				
+				final Map<String, String> attributes = new HashMap<>();
+				
+				if (languages.length > 0) {
+					attributes.put("language", languages[0].getLang());
+					attributes.put("language.confidence", String.valueOf(languages[0].getConfidence()));
+				}
+				
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				
+			} else {
+				
+				flowFile = session.write(flowFile, new OutputStreamCallback() {
+					
+					@Override
+					public void process(OutputStream outputStream) throws IOException {
+						
+						final String json = gson.toJson(languages);
+						IOUtils.write(json, outputStream, Charset.forName("UTF-8"));
+						
+					}
+					
+				});
+				
+			}
+			
+			route(session, flowFile, languages);
 			
 		} catch (Exception ex) {
 			
@@ -145,4 +444,126 @@ public class LangDetect extends AbstractProcessor {
 
 	}
 	
+	/**
+	 * Transfers a FlowFile to the relationships of its most probable language, cloning
+	 * it when more than one relationship matches. FlowFiles go to success when no
+	 * languages are routed.
+	 * @param session The {@link ProcessSession}.
+	 * @param flowFile The {@link FlowFile}.
+	 * @param languages The filtered languages ordered by descending confidence.
+	 */
+	private void route(final ProcessSession session, final FlowFile flowFile, final Language[] languages) {
+		
+		final Map<Relationship, Set<String>> routes = this.routes;
+		
+		if (routes.isEmpty()) {
+			session.transfer(flowFile, REL_SUCCESS);
+			return;
+		}
+		
+		if (languages.length == 0) {
+			session.transfer(flowFile, REL_LOW_CONFIDENCE);
+			return;
+		}
+		
+		final List<Relationship> matches = new ArrayList<>();
+		
+		for (final Map.Entry<Relationship, Set<String>> route : routes.entrySet()) {
+			if (route.getValue().contains(languages[0].getLang())) {
+				matches.add(route.getKey());
+			}
+		}
+		
+		if (matches.isEmpty()) {
+			session.transfer(flowFile, REL_UNMATCHED);
+			return;
+		}
+		
+		for (int i = 1; i < matches.size(); i++) {
+			session.transfer(session.clone(flowFile), matches.get(i));
+		}
+		
+		session.transfer(flowFile, matches.get(0));
+		
+	}
+	
+	private Language[] predictLanguages(final ProcessSession session, final String text) {
+		
+		final LanguageResultCache cache = resultCache;
+		
+		if (cache == null) {
+			return detectorPool.predictLanguages(text);
+		}
+		
+		Language[] languages = cache.get(text);
+		
+		if (languages != null) {
+			
+			session.adjustCounter("Result Cache Hits", 1, false);
+			
+		} else {
+			
+			session.adjustCounter("Result Cache Misses", 1, false);
+			
+			languages = detectorPool.predictLanguages(text);
+			cache.put(text, languages);
+			
+		}
+		
+		return languages;
+		
+	}
+	
+	/**
+	 * Keeps the most probable languages that meet the minimum confidence.
+	 * @param languages The predicted languages ordered by descending confidence.
+	 * @param maxLanguages The maximum number of languages to keep, or 0 to keep all of them.
+	 * @param minConfidence The minimum confidence of a language to keep.
+	 * @return The filtered languages.
+	 */
+	private Language[] filterLanguages(final Language[] languages, final int maxLanguages, final double minConfidence) {
+		
+		final List<Language> filtered = new ArrayList<>();
+		
+		for (final Language language : languages) {
+			
+			if (maxLanguages > 0 && filtered.size() == maxLanguages) {
+				break;
+			}
+			
+			if (language.getConfidence() >= minConfidence) {
+				filtered.add(language);
+			}
+			
+		}
+		
+		return filtered.toArray(new Language[filtered.size()]);
+		
+	}
+	
+	/**
+	 * Decodes at most <code>maxCharacters</code> characters from the start of the stream
+	 * so large documents are never fully materialized on the heap.
+	 * @param inputStream The FlowFile content.
+	 * @param maxCharacters The maximum number of characters to read, or 0 to read everything.
+	 * @param size The size of the content in bytes.
+	 * @return The sampled text.
+	 * @throws IOException Thrown if the content cannot be read.
+	 */
+	private String readSample(final InputStream inputStream, final int maxCharacters, final long size) throws IOException {
+		
+		final Reader reader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
+		
+		if (maxCharacters == 0) {
+			return IOUtils.toString(reader);
+		}
+		
+		// UTF-8 never decodes to more characters than bytes so small content gets a small buffer.
+		final char[] buffer = new char[(int) Math.min(maxCharacters, size)];
+		final int read = IOUtils.read(reader, buffer);
+		
+		return new String(buffer, 0, read);
+		
+	}
+	
 }
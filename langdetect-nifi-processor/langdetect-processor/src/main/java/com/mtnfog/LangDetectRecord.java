@@ -0,0 +1,444 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.record.path.FieldValue;
+import org.apache.nifi.record.path.RecordPath;
+import org.apache.nifi.record.path.validation.RecordPathValidator;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+
+import com.mtnfog.LanguageModelCache.CachedModel;
+
+import opennlp.tools.langdetect.Language;
+
+@Tags({ "opennlp, nlp, language, record" })
+@CapabilityDescription("Performs NLP language detection using OpenNLP on a text field of each record and adds "
+		+ "the most probable language and its confidence to the record.")
+@SeeAlso({ LangDetect.class })
+@WritesAttributes({ @WritesAttribute(attribute = "record.count", description = "The number of records in the FlowFile."),
+	@WritesAttribute(attribute = "mime.type", description = "The MIME type given by the Record Writer.") })
+@SideEffectFree
+@SupportsBatching
+public class LangDetectRecord extends AbstractProcessor {
+
+	public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+			.name("Record Reader")
+			.description("The Record Reader used to read the incoming records.")
+			.identifiesControllerService(RecordReaderFactory.class)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+			.name("Record Writer")
+			.description("The Record Writer used to write the records with the detected languages.")
+			.identifiesControllerService(RecordSetWriterFactory.class)
+			.required(true)
+			.build();
+
+	public static final PropertyDescriptor TEXT_FIELD = new PropertyDescriptor.Builder()
+			.name("Text Field")
+			.defaultValue("/text")
+			.description("A RecordPath to the record field holding the text to detect the language of, such as /text "
+					+ "or /document/body for a nested field. Records where the path selects no value get no language.")
+			.required(true)
+			.addValidator(new RecordPathValidator())
+			.build();
+
+	public static final PropertyDescriptor LANGUAGE_FIELD = new PropertyDescriptor.Builder()
+			.name("Language Field")
+			.defaultValue("language")
+			.description("The name of the record field to write the most probable ISO-639-3 language code to.")
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor CONFIDENCE_FIELD = new PropertyDescriptor.Builder()
+			.name("Confidence Field")
+			.defaultValue("language_confidence")
+			.description("The name of the record field to write the confidence of the most probable language to.")
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor DETECTION_THREADS = new PropertyDescriptor.Builder()
+			.name("Detection Threads")
+			.defaultValue("1")
+			.description("The number of threads used to detect the languages of the records in a FlowFile. "
+					+ "Records are always written in their original order.")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.name("success").description("success").build();
+
+	public static final Relationship REL_FAILURE = new Relationship.Builder()
+			.name("failure").description("failure").build();
+
+	// The maximum number of records waiting on detection, which bounds the memory used when detecting in parallel.
+	private static final int MAX_PENDING_RECORDS = 1000;
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	private volatile CachedModel cachedModel;
+	private volatile RecordPath textPath;
+
+	// The detectors backed by the shared, immutable model, dropped when the processor stops so the model can be freed.
+	private volatile LanguageDetectorPool detectorPool;
+	private volatile ExecutorService executor;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+
+		descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(RECORD_READER);
+		descriptors.add(RECORD_WRITER);
+		descriptors.add(TEXT_FIELD);
+		descriptors.add(LANGUAGE_FIELD);
+		descriptors.add(CONFIDENCE_FIELD);
+		descriptors.add(LangDetect.MODEL_PATH);
+		descriptors.add(LangDetect.MAX_SAMPLE_CHARACTERS);
+		descriptors.add(LangDetect.MIN_CONFIDENCE);
+		descriptors.add(DETECTION_THREADS);
+		descriptors = Collections.unmodifiableList(descriptors);
+
+		relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		relationships = Collections.unmodifiableSet(relationships);
+
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) throws IOException {
+
+		textPath = RecordPath.compile(context.getProperty(TEXT_FIELD).getValue());
+
+		cachedModel = LanguageModelCache.acquire(context.getProperty(LangDetect.MODEL_PATH).getValue());
+
+		detectorPool = new LanguageDetectorPool(cachedModel.getModel(), context.getMaxConcurrentTasks() * Math.max(1, context.getProperty(DETECTION_THREADS).asInteger()));
+
+		final int threads = context.getProperty(DETECTION_THREADS).asInteger();
+
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+
+	}
+
+	@OnStopped
+	public void onStopped() {
+
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		if (detectorPool != null) {
+			detectorPool.clear();
+			detectorPool = null;
+		}
+
+		if (cachedModel != null) {
+			LanguageModelCache.release(cachedModel);
+			cachedModel = null;
+		}
+
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext ctx, final ProcessSession session) throws ProcessException {
+
+		FlowFile flowFile = session.get();
+
+		if (flowFile == null) {
+			return;
+		}
+
+		final RecordReaderFactory readerFactory = ctx.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+		final RecordSetWriterFactory writerFactory = ctx.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+		final RecordPath textPath = this.textPath;
+		final String languageField = ctx.getProperty(LANGUAGE_FIELD).getValue();
+		final String confidenceField = ctx.getProperty(CONFIDENCE_FIELD).getValue();
+		final int maxSampleCharacters = ctx.getProperty(LangDetect.MAX_SAMPLE_CHARACTERS).asInteger();
+		final double minConfidence = ctx.getProperty(LangDetect.MIN_CONFIDENCE).asDouble();
+
+		final Map<String, String> originalAttributes = flowFile.getAttributes();
+		final Map<String, String> attributes = new HashMap<>();
+
+		try {
+
+			// Records are streamed from the reader to the writer so the FlowFile is never held in memory.
+			flowFile = session.write(flowFile, new StreamCallback() {
+
+				@Override
+				public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+
+					try (final RecordReader reader = readerFactory.createRecordReader(originalAttributes, inputStream, getLogger())) {
+
+						final RecordSchema schema = addLanguageFields(reader.getSchema(), languageField, confidenceField);
+						final RecordSchema writeSchema = writerFactory.getSchema(originalAttributes, schema);
+
+						try (final RecordSetWriter writer = writerFactory.createWriter(getLogger(), writeSchema, outputStream)) {
+
+							writer.beginRecordSet();
+
+							final ExecutorService executor = LangDetectRecord.this.executor;
+
+							// Records waiting for their detection to complete, in their original order.
+							final Deque<PendingRecord> pending = new ArrayDeque<>();
+
+							try {
+
+								Record record;
+
+								while ((record = reader.nextRecord()) != null) {
+
+									final String text = getText(record, textPath);
+
+									if (executor == null) {
+
+										writeRecord(writer, schema, record, detect(text, maxSampleCharacters, minConfidence), languageField, confidenceField);
+
+									} else {
+
+										pending.add(new PendingRecord(record, executor.submit(() -> detect(text, maxSampleCharacters, minConfidence))));
+
+										if (pending.size() >= MAX_PENDING_RECORDS) {
+											writePendingRecord(writer, schema, pending.poll(), languageField, confidenceField);
+										}
+
+									}
+
+								}
+
+								while (!pending.isEmpty()) {
+									writePendingRecord(writer, schema, pending.poll(), languageField, confidenceField);
+								}
+
+							} finally {
+
+								for (final PendingRecord pendingRecord : pending) {
+									pendingRecord.language.cancel(true);
+								}
+
+							}
+
+							final WriteResult writeResult = writer.finishRecordSet();
+
+							attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+							attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+							attributes.putAll(writeResult.getAttributes());
+
+						}
+
+					} catch (SchemaNotFoundException | MalformedRecordException ex) {
+
+						throw new ProcessException("Unable to read the records.", ex);
+
+					}
+
+				}
+
+			});
+
+			flowFile = session.putAllAttributes(flowFile, attributes);
+
+			session.transfer(flowFile, REL_SUCCESS);
+
+		} catch (Exception ex) {
+
+			getLogger().error(String.format("Unable to detect language. Exception: %s", ex.getMessage()), ex);
+			session.transfer(flowFile, REL_FAILURE);
+
+		}
+
+	}
+
+	/**
+	 * Gets the text of a record.
+	 * @param record The record.
+	 * @param textPath The path to the field holding the text.
+	 * @return The value of the first field the path selects, or <code>null</code> if it selects no value.
+	 */
+	private static String getText(final Record record, final RecordPath textPath) {
+
+		final Optional<FieldValue> fieldValue = textPath.evaluate(record).getSelectedFields().findFirst();
+
+		if (!fieldValue.isPresent() || fieldValue.get().getValue() == null) {
+			return null;
+		}
+
+		return DataTypeUtils.toString(fieldValue.get().getValue(), (String) null);
+
+	}
+
+	/**
+	 * Detects the most probable language of a text.
+	 * @param text The text. Can be <code>null</code>.
+	 * @param maxSampleCharacters The maximum number of characters to score, or 0 to score the entire text.
+	 * @param minConfidence The minimum confidence of the language.
+	 * @return The most probable language, or <code>null</code> if there is no text or
+	 * the language does not meet the minimum confidence.
+	 */
+	private Language detect(String text, final int maxSampleCharacters, final double minConfidence) {
+
+		if (text == null) {
+			return null;
+		}
+
+		if (maxSampleCharacters > 0 && text.length() > maxSampleCharacters) {
+			text = text.substring(0, maxSampleCharacters);
+		}
+
+		final Language[] languages = detectorPool.predictLanguages(text);
+
+		if (languages.length == 0 || languages[0].getConfidence() < minConfidence) {
+			return null;
+		}
+
+		return languages[0];
+
+	}
+
+	private void writePendingRecord(final RecordSetWriter writer, final RecordSchema schema, final PendingRecord pendingRecord,
+			final String languageField, final String confidenceField) throws IOException {
+
+		final Language language;
+
+		try {
+
+			language = pendingRecord.language.get();
+
+		} catch (InterruptedException ex) {
+
+			Thread.currentThread().interrupt();
+			throw new ProcessException("Interrupted while detecting languages.", ex);
+
+		} catch (ExecutionException ex) {
+
+			throw new ProcessException("Unable to detect language.", ex.getCause());
+
+		}
+
+		writeRecord(writer, schema, pendingRecord.record, language, languageField, confidenceField);
+
+	}
+
+	private void writeRecord(final RecordSetWriter writer, final RecordSchema schema, final Record record, final Language language,
+			final String languageField, final String confidenceField) throws IOException {
+
+		record.incorporateSchema(schema);
+		record.setValue(languageField, language == null ? null : language.getLang());
+		record.setValue(confidenceField, language == null ? null : language.getConfidence());
+
+		writer.write(record);
+
+	}
+
+	private RecordSchema addLanguageFields(final RecordSchema schema, final String languageField, final String confidenceField) {
+
+		final List<RecordField> fields = new ArrayList<>(schema.getFields());
+
+		if (!schema.getField(languageField).isPresent()) {
+			fields.add(new RecordField(languageField, RecordFieldType.STRING.getDataType()));
+		}
+
+		if (!schema.getField(confidenceField).isPresent()) {
+			fields.add(new RecordField(confidenceField, RecordFieldType.DOUBLE.getDataType()));
+		}
+
+		return new SimpleRecordSchema(fields);
+
+	}
+
+	/**
+	 * A record whose language is being detected by the executor.
+	 */
+	private static final class PendingRecord {
+
+		private final Record record;
+		private final Future<Language> language;
+
+		private PendingRecord(final Record record, final Future<Language> language) {
+			this.record = record;
+			this.language = language;
+		}
+
+	}
+
+}
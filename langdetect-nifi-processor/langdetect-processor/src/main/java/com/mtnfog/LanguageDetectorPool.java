@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import opennlp.tools.langdetect.Language;
+import opennlp.tools.langdetect.LanguageDetector;
+import opennlp.tools.langdetect.LanguageDetectorME;
+import opennlp.tools.langdetect.LanguageDetectorModel;
+
+/**
+ * A bounded pool of detectors sharing one model. LanguageDetectorME is not thread safe,
+ * so each prediction borrows a detector and returns it afterwards. Unlike a detector per
+ * thread, the pool is the only thing holding the detectors, so once the processor drops
+ * the pool the model is no longer reachable from NiFi's long-lived threads.
+ */
+public class LanguageDetectorPool {
+
+	private final LanguageDetectorModel model;
+	private final BlockingQueue<LanguageDetector> idle;
+
+	/**
+	 * Creates a pool.
+	 * @param model The model the detectors use.
+	 * @param maxIdle The maximum number of detectors kept between predictions.
+	 */
+	public LanguageDetectorPool(final LanguageDetectorModel model, final int maxIdle) {
+		this.model = model;
+		this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+	}
+
+	/**
+	 * Predicts the languages of a text with a detector from the pool.
+	 * @param text The text.
+	 * @return The languages in order of confidence.
+	 */
+	public Language[] predictLanguages(final String text) {
+
+		LanguageDetector detector = idle.poll();
+
+		// More threads than idle detectors creates a detector rather than waiting for one.
+		if (detector == null) {
+			detector = new LanguageDetectorME(model);
+		}
+
+		try {
+			return detector.predictLanguages(text);
+		} finally {
+			idle.offer(detector);
+		}
+
+	}
+
+	/**
+	 * Drops the idle detectors.
+	 */
+	public void clear() {
+		idle.clear();
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import opennlp.tools.langdetect.LanguageDetectorModel;
+
+/**
+ * A JVM-wide, reference counted cache of language detector models so
+ * processor instances configured with the same model share one copy.
+ */
+public final class LanguageModelCache {
+
+	private static final Map<String, CachedModel> MODELS = new HashMap<>();
+
+	private LanguageModelCache() {
+
+	}
+
+	/**
+	 * Gets the model at a location, loading it if no other processor is using it.
+	 * Every call must be matched by a call to {@link #release(CachedModel)}.
+	 * @param location A file system path or a classpath resource.
+	 * @return The cached model.
+	 * @throws IOException Thrown if the model cannot be read.
+	 */
+	public static synchronized CachedModel acquire(final String location) throws IOException {
+
+		final String key = getKey(location);
+
+		CachedModel cachedModel = MODELS.get(key);
+
+		if (cachedModel == null) {
+
+			// The model is only read when no processor is using it.
+			cachedModel = new CachedModel(key, load(location));
+			MODELS.put(key, cachedModel);
+
+		}
+
+		cachedModel.references++;
+
+		return cachedModel;
+
+	}
+
+	/**
+	 * Releases a model. The model is evicted once it is no longer referenced.
+	 * @param cachedModel The {@link CachedModel} returned by {@link #acquire(String)}.
+	 */
+	public static synchronized void release(final CachedModel cachedModel) {
+
+		cachedModel.references--;
+
+		if (cachedModel.references == 0) {
+			MODELS.remove(cachedModel.key);
+		}
+
+	}
+
+	private static String getKey(final String location) {
+
+		final File file = new File(location);
+
+		// A file that is replaced gets a new key. Classpath resources can't change while the JVM runs.
+		if (file.isFile()) {
+			return location + "#" + file.length() + "#" + file.lastModified();
+		}
+
+		return location;
+
+	}
+
+	private static LanguageDetectorModel load(final String location) throws IOException {
+
+		final File file = new File(location);
+
+		// The model is streamed into OpenNLP rather than read into an array first.
+		try (InputStream inputStream = file.isFile() ? new FileInputStream(file)
+				: LanguageModelCache.class.getClassLoader().getResourceAsStream(location)) {
+
+			if (inputStream == null) {
+				throw new FileNotFoundException("Unable to find language model " + location + " on the file system or classpath.");
+			}
+
+			return new LanguageDetectorModel(new BufferedInputStream(inputStream));
+
+		}
+
+	}
+
+	/**
+	 * A model held by the cache.
+	 */
+	public static final class CachedModel {
+
+		private final String key;
+		private final LanguageDetectorModel model;
+		private int references;
+
+		private CachedModel(final String key, final LanguageDetectorModel model) {
+			this.key = key;
+			this.model = model;
+		}
+
+		public LanguageDetectorModel getModel() {
+			return model;
+		}
+
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import opennlp.tools.langdetect.Language;
+
+/**
+ * A bounded, least recently used cache of language predictions keyed by a hash
+ * of the scored text. Entries expire after a fixed time to live.
+ */
+public class LanguageResultCache {
+
+	private final Map<Key, Entry> entries;
+	private final long timeToLiveMillis;
+
+	/**
+	 * Creates a cache.
+	 * @param maxSize The maximum number of predictions to hold.
+	 * @param timeToLiveMillis The time after which a prediction expires.
+	 */
+	public LanguageResultCache(final int maxSize, final long timeToLiveMillis) {
+
+		this.timeToLiveMillis = timeToLiveMillis;
+
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > maxSize;
+			}
+
+		};
+
+	}
+
+	/**
+	 * Gets the cached prediction for a text.
+	 * @param text The scored text.
+	 * @return The cached languages, or <code>null</code> if there is no unexpired prediction.
+	 */
+	public synchronized Language[] get(final String text) {
+
+		final Key key = new Key(text);
+		final Entry entry = entries.get(key);
+
+		if (entry == null) {
+			return null;
+		}
+
+		if (System.currentTimeMillis() - entry.created > timeToLiveMillis) {
+			entries.remove(key);
+			return null;
+		}
+
+		return entry.languages;
+
+	}
+
+	/**
+	 * Caches the prediction for a text.
+	 * @param text The scored text.
+	 * @param languages The predicted languages.
+	 */
+	public synchronized void put(final String text, final Language[] languages) {
+		entries.put(new Key(text), new Entry(languages));
+	}
+
+	/**
+	 * The cache key. Only a 64-bit FNV-1a hash and the length of the text are kept
+	 * so large texts are not retained by the cache.
+	 */
+	private static final class Key {
+
+		private final long hash;
+		private final int length;
+
+		private Key(final String text) {
+
+			long h = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < text.length(); i++) {
+				h ^= text.charAt(i);
+				h *= 0x100000001b3L;
+			}
+
+			this.hash = h;
+			this.length = text.length();
+
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			final Key other = (Key) obj;
+
+			return hash == other.hash && length == other.length;
+
+		}
+
+	}
+
+	private static final class Entry {
+
+		private final Language[] languages;
+		private final long created;
+
+		private Entry(final Language[] languages) {
+			this.languages = languages;
+			this.created = System.currentTimeMillis();
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2018 Mountain Fog, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mtnfog.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mtnfog.LangDetectRecord;
+
+public class LangDetectRecordTest {
+
+    private TestRunner runner;
+    private MockRecordParser reader;
+
+    @Before
+    public void init() throws InitializationException {
+
+    	runner = TestRunners.newTestRunner(LangDetectRecord.class);
+
+    	reader = new MockRecordParser();
+
+    	runner.addControllerService("reader", reader);
+    	runner.addControllerService("writer", new MockRecordWriter(null, false));
+    	runner.enableControllerService(reader);
+    	runner.enableControllerService(runner.getControllerService("writer"));
+
+    	runner.setProperty(LangDetectRecord.RECORD_READER, "reader");
+    	runner.setProperty(LangDetectRecord.RECORD_WRITER, "writer");
+
+    }
+
+    @Test
+    public void detectRecords() throws IOException {
+
+    	reader.addSchemaField("text", RecordFieldType.STRING);
+    	reader.addRecord("George Washington was president");
+    	reader.addRecord("Der Hund frisst das Essen im Haus meiner Mutter jeden Tag");
+
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(LangDetectRecord.REL_SUCCESS, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(LangDetectRecord.REL_SUCCESS).get(0);
+
+        result.assertAttributeEquals("record.count", "2");
+
+        final String[] lines = new String(runner.getContentAsByteArray(result), Charset.forName("UTF-8")).split("\n");
+
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("George Washington was president,eng,"));
+        assertTrue(lines[1].startsWith("Der Hund frisst das Essen im Haus meiner Mutter jeden Tag,deu,"));
+
+    }
+
+    @Test
+    public void detectRecordsInParallel() throws IOException {
+
+    	runner.setProperty(LangDetectRecord.DETECTION_THREADS, "4");
+
+    	reader.addSchemaField("text", RecordFieldType.STRING);
+
+    	for (int i = 0; i < 2500; i++) {
+    		reader.addRecord(i % 2 == 0 ? "George Washington was president " + i : "Der Hund frisst das Essen im Haus meiner Mutter " + i);
+    	}
+
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(LangDetectRecord.REL_SUCCESS, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(LangDetectRecord.REL_SUCCESS).get(0);
+
+        result.assertAttributeEquals("record.count", "2500");
+
+        final String[] lines = new String(runner.getContentAsByteArray(result), Charset.forName("UTF-8")).split("\n");
+
+        assertEquals(2500, lines.length);
+
+        for (int i = 0; i < lines.length; i++) {
+        	assertTrue(lines[i], lines[i].contains(" " + i + "," + (i % 2 == 0 ? "eng" : "deu") + ","));
+        }
+
+    }
+
+    @Test
+    public void detectNestedField() throws IOException {
+
+    	runner.setProperty(LangDetectRecord.TEXT_FIELD, "/document/text");
+
+    	final RecordSchema documentSchema = new SimpleRecordSchema(Collections.singletonList(new RecordField("text", RecordFieldType.STRING.getDataType())));
+    	final Map<String, Object> document = new HashMap<>();
+    	document.put("text", "George Washington was president");
+
+    	reader.addSchemaField("document", RecordFieldType.RECORD);
+    	reader.addRecord(new MapRecord(documentSchema, document));
+
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertQueueEmpty();
+
+        runner.assertAllFlowFilesTransferred(LangDetectRecord.REL_SUCCESS, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(LangDetectRecord.REL_SUCCESS).get(0);
+
+        final String content = new String(runner.getContentAsByteArray(result), Charset.forName("UTF-8"));
+        assertTrue(content, content.contains(",eng,"));
+
+    }
+
+    @Test
+    public void invalidTextField() {
+
+    	runner.setProperty(LangDetectRecord.TEXT_FIELD, "text");
+    	runner.assertNotValid();
+
+    	runner.setProperty(LangDetectRecord.TEXT_FIELD, "/text");
+    	runner.assertValid();
+
+    }
+
+}
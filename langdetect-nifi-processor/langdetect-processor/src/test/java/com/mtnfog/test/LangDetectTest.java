@@ -18,25 +18,34 @@ package com.mtnfog.test;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
 import java.util.List;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.mtnfog.LangDetect;
+import com.mtnfog.LanguageModelCache;
+import com.mtnfog.LanguageModelCache.CachedModel;
 
 import opennlp.tools.langdetect.Language;
 
 public class LangDetectTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
     private TestRunner runner;
 
     @Before
@@ -69,5 +78,266 @@ public class LangDetectTest {
         assertEquals("eng", languages.get(0).getLang());
         
     }
- 
-}
\ No newline at end of file
+    
+    @Test
+    public void detectBatch() throws IOException {
+
+        runner.setProperty(LangDetect.BATCH_SIZE, "10");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.enqueue("Abraham Lincoln was president".getBytes());
+        runner.enqueue("Thomas Jefferson was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 3);
+        
+    }
+    
+    @Test
+    public void detectBatchLimitedBySize() throws IOException {
+
+        runner.setProperty(LangDetect.BATCH_SIZE, "10");
+        runner.setProperty(LangDetect.MAX_BATCH_SIZE, "40 B");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.enqueue("Abraham Lincoln was president".getBytes());
+        runner.run(1);
+        
+        runner.assertQueueNotEmpty();
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 1);
+        
+    }
+    
+    @Test
+    public void detectConcurrently() throws IOException {
+
+        runner.setThreadCount(4);
+        
+        for (int i = 0; i < 100; i++) {
+        	runner.enqueue("George Washington was president".getBytes());
+        }
+        
+        runner.run(100);
+        runner.assertQueueEmpty();
+        
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS);
+        assertEquals(100, results.size());
+        
+        Gson gson = new Gson();
+        Type listType = new TypeToken<List<Language>>(){}.getType();
+        
+        for (MockFlowFile result : results) {
+        	List<Language> languages = gson.fromJson(IOUtils.toString(runner.getContentAsByteArray(result), "UTF-8"), listType);
+        	assertEquals("eng", languages.get(0).getLang());
+        }
+        
+    }
+    
+    @Test
+    public void detectToAttributes() throws IOException {
+
+        runner.setProperty(LangDetect.DESTINATION, LangDetect.DESTINATION_ATTRIBUTE);
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS);
+        assertTrue("1 match", results.size() == 1);
+        MockFlowFile result = results.get(0);
+        
+        result.assertContentEquals("George Washington was president");
+        result.assertAttributeEquals("language", "eng");
+        result.assertAttributeExists("language.confidence");
+        
+    }
+    
+    @Test
+    public void detectSampledPrefix() throws IOException {
+
+        runner.setProperty(LangDetect.MAX_SAMPLE_CHARACTERS, "31");
+        runner.setProperty(LangDetect.DESTINATION, LangDetect.DESTINATION_ATTRIBUTE);
+        
+        runner.enqueue("George Washington was president. Der Hund frisst das Essen im Haus meiner Mutter jeden Tag".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS).get(0).assertAttributeEquals("language", "eng");
+        
+    }
+    
+    @Test
+    public void detectTopLanguage() throws IOException {
+
+        runner.setProperty(LangDetect.MAX_LANGUAGES, "1");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 1);
+        MockFlowFile result = runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS).get(0);
+        
+        Type listType = new TypeToken<List<Language>>(){}.getType();
+        List<Language> languages = new Gson().fromJson(IOUtils.toString(runner.getContentAsByteArray(result), "UTF-8"), listType);
+        
+        assertEquals(1, languages.size());
+        assertEquals("eng", languages.get(0).getLang());
+        
+    }
+    
+    @Test
+    public void detectBelowMinimumConfidence() throws IOException {
+
+        runner.setProperty(LangDetect.MIN_CONFIDENCE, "1");
+        runner.setProperty(LangDetect.DESTINATION, LangDetect.DESTINATION_ATTRIBUTE);
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS).get(0).assertAttributeNotExists("language");
+        
+    }
+    
+    @Test
+    public void minimumConfidenceOutOfRange() {
+
+        runner.setProperty(LangDetect.MIN_CONFIDENCE, "1.1");
+        runner.assertNotValid();
+        
+        runner.setProperty(LangDetect.MIN_CONFIDENCE, "-0.1");
+        runner.assertNotValid();
+        
+        runner.setProperty(LangDetect.MIN_CONFIDENCE, "0.5");
+        runner.assertValid();
+        
+    }
+    
+    @Test
+    public void modelIsShared() throws IOException {
+
+        CachedModel first = LanguageModelCache.acquire("langdetect-183.bin");
+        CachedModel second = LanguageModelCache.acquire("langdetect-183.bin");
+        
+        assertSame(first.getModel(), second.getModel());
+        
+        LanguageModelCache.release(first);
+        LanguageModelCache.release(second);
+
+    }
+
+    @Test
+    public void replacedModelIsReloaded() throws IOException {
+
+        File model = temporaryFolder.newFile("langdetect.bin");
+
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("langdetect-183.bin")) {
+        	FileUtils.copyInputStreamToFile(inputStream, model);
+        }
+
+        CachedModel first = LanguageModelCache.acquire(model.getAbsolutePath());
+
+        model.setLastModified(model.lastModified() - 60000);
+
+        CachedModel second = LanguageModelCache.acquire(model.getAbsolutePath());
+
+        assertNotSame(first.getModel(), second.getModel());
+
+        LanguageModelCache.release(first);
+        LanguageModelCache.release(second);
+
+    }
+    
+    @Test(expected = AssertionError.class)
+    public void missingModel() throws IOException {
+
+        runner.setProperty(LangDetect.MODEL_PATH, "does-not-exist.bin");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.run(1);
+        
+    }
+    
+    @Test
+    public void detectWithResultCache() throws IOException {
+
+        runner.setProperty(LangDetect.CACHE_SIZE, "10");
+        runner.setProperty(LangDetect.BATCH_SIZE, "10");
+        runner.setProperty(LangDetect.DESTINATION, LangDetect.DESTINATION_ATTRIBUTE);
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.enqueue("George Washington was president".getBytes());
+        runner.enqueue("Abraham Lincoln was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_SUCCESS, 3);
+        
+        assertEquals(1, runner.getCounterValue("Result Cache Hits").longValue());
+        assertEquals(2, runner.getCounterValue("Result Cache Misses").longValue());
+        
+        for (MockFlowFile result : runner.getFlowFilesForRelationship(LangDetect.REL_SUCCESS)) {
+        	result.assertAttributeEquals("language", "eng");
+        }
+        
+    }
+    
+    @Test
+    public void routeOnLanguage() throws IOException {
+
+        runner.setProperty(LangDetect.BATCH_SIZE, "10");
+        runner.setProperty(LangDetect.DESTINATION, LangDetect.DESTINATION_ATTRIBUTE);
+        runner.setProperty("english", "eng");
+        runner.setProperty("spanish", "spa");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.enqueue("Jorge Washington fue el primer presidente de los Estados Unidos".getBytes());
+        runner.enqueue("Der Hund frisst das Essen im Haus meiner Mutter jeden Tag".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertTransferCount("english", 1);
+        runner.assertTransferCount("spanish", 1);
+        runner.assertTransferCount(LangDetect.REL_UNMATCHED, 1);
+        
+        runner.getFlowFilesForRelationship("english").get(0).assertContentEquals("George Washington was president");
+        
+    }
+    
+    @Test
+    public void routeLowConfidence() throws IOException {
+
+        runner.setProperty(LangDetect.MIN_CONFIDENCE, "1");
+        runner.setProperty("english", "eng");
+        
+        runner.enqueue("George Washington was president".getBytes());
+        runner.run(1);
+        runner.assertQueueEmpty();
+        
+        runner.assertAllFlowFilesTransferred(LangDetect.REL_LOW_CONFIDENCE, 1);
+        
+    }
+
+    @Test
+    public void reservedRouteNames() {
+
+        runner.setProperty("english", "eng");
+        runner.assertValid();
+
+        for (String name : new String[] { "success", "failure", "unmatched", "low confidence" }) {
+
+            runner.setProperty(name, "eng");
+            runner.assertNotValid();
+
+            runner.removeProperty(runner.getProcessor().getPropertyDescriptor(name));
+            runner.assertValid();
+
+        }
+
+    }
+
+}